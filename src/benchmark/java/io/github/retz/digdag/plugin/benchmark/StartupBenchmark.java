@@ -0,0 +1,130 @@
+package io.github.retz.digdag.plugin.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.guava.GuavaModule;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigFactory;
+import io.digdag.spi.CommandLogger;
+import io.digdag.spi.OperatorContext;
+import io.digdag.spi.OperatorFactory;
+import io.digdag.spi.OperatorProvider;
+import io.digdag.spi.Plugin;
+import io.digdag.spi.TaskRequest;
+
+import java.io.File;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Map;
+import java.util.UUID;
+
+/*
+ * Loads the plugin jar into a fresh classloader as digdag does for each plugin resolution,
+ * and measures the time and the number of classes loaded until the first newOperator() returns.
+ *
+ *   ./gradlew startupBenchmark [-PbenchmarkRuns=5]
+ *
+ * The first run includes JDK and digdag classes shared by every run.
+ */
+public class StartupBenchmark {
+
+    private static final String PLUGIN_CLASS = "io.github.retz.digdag.plugin.RetzPlugin";
+
+    public static void main(String[] args) throws Exception {
+        File pluginJar = new File(args[0]);
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        ConfigFactory cf = new ConfigFactory(new ObjectMapper().registerModule(new GuavaModule()));
+        Config systemConfig = cf.create()
+                .set("retz.server.uri", "http://localhost:9090");
+        Config taskConfig = cf.create()
+                .set("_command", "echo hello")
+                .set("appname", "benchmark");
+        Path projectPath = Files.createTempDirectory("retz-benchmark");
+
+        ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+        System.out.printf("plugin jar: %s (%d bytes)%n", pluginJar, pluginJar.length());
+        for (int i = 1; i <= runs; i++) {
+            long classes = classLoading.getTotalLoadedClassCount();
+            long start = System.nanoTime();
+            try (URLClassLoader loader = new URLClassLoader(
+                    new URL[] {pluginJar.toURI().toURL()}, StartupBenchmark.class.getClassLoader())) {
+                OperatorFactory factory = newOperatorFactory(loader, systemConfig);
+                factory.newOperator(newOperatorContext(projectPath, taskConfig, cf.create()));
+
+                long elapsed = System.nanoTime() - start;
+                System.out.printf("run %d: first newOperator() in %.1f ms, %d classes loaded%n",
+                        i, elapsed / 1e6, classLoading.getTotalLoadedClassCount() - classes);
+            }
+        }
+    }
+
+    private static OperatorFactory newOperatorFactory(ClassLoader loader, Config systemConfig) throws Exception {
+        Plugin plugin = (Plugin) loader.loadClass(PLUGIN_CLASS).getDeclaredConstructor().newInstance();
+        OperatorProvider provider = plugin.getServiceProvider(OperatorProvider.class)
+                .getDeclaredConstructor().newInstance();
+        // injected by digdag
+        inject(provider, "cLog", proxy(CommandLogger.class, ImmutableMap.of()));
+        inject(provider, "systemConfig", systemConfig);
+        return provider.get().get(0);
+    }
+
+    private static OperatorContext newOperatorContext(Path projectPath, Config config, Config state) {
+        TaskRequest request = proxy(TaskRequest.class, ImmutableMap.<String, Object>builder()
+                .put("getSiteId", 0)
+                .put("getProjectId", 1)
+                .put("getWorkflowName", "benchmark")
+                .put("getTaskId", 1L)
+                .put("getAttemptId", 1L)
+                .put("getSessionId", 1L)
+                .put("getTaskName", "+benchmark+retz")
+                .put("getLockId", "benchmark")
+                .put("getTimeZone", ZoneId.of("UTC"))
+                .put("getSessionUuid", UUID.randomUUID())
+                .put("getSessionTime", Instant.now())
+                .put("getCreatedAt", Instant.now())
+                .put("getLocalConfig", config)
+                .put("getConfig", config)
+                .put("getLastStateParams", state)
+                .build());
+        return proxy(OperatorContext.class, ImmutableMap.of(
+                "getProjectPath", projectPath,
+                "getTaskRequest", request));
+    }
+
+    private static void inject(Object target, String name, Object value) throws ReflectiveOperationException {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    private static <T> T proxy(Class<T> type, Map<String, Object> values) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "toString":
+                            return type.getSimpleName();
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                    }
+                    if (values.containsKey(method.getName())) {
+                        return values.get(method.getName());
+                    }
+                    if (method.getReturnType() == Optional.class) {
+                        return Optional.absent();
+                    }
+                    throw new UnsupportedOperationException(type.getSimpleName() + "#" + method.getName());
+                }));
+    }
+}
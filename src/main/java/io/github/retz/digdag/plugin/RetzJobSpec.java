@@ -0,0 +1,420 @@
+package io.github.retz.digdag.plugin;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigException;
+import io.digdag.spi.TaskRequest;
+import io.github.retz.cli.SubCommand;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ * Task options of `retz_run>` compiled and validated at once.
+ * All invalid options are reported together in a single ConfigException.
+ */
+final class RetzJobSpec {
+
+    private static final String DEFAULT_CLIENT_MODE = "api";
+    private static final String DEFAULT_CLIENT_CMD = "/opt/retz-client/bin/retz-client";
+    private static final int DEFAULT_CPU = 1;
+    private static final String DEFAULT_MEM = "32MB";
+    private static final String DEFAULT_DISK = "32MB";
+    private static final int DEFAULT_GPU = 0;
+    private static final int DEFAULT_PORTS = 0;
+    private static final int DEFAULT_PRIORITY = 0;
+    private static final int DEFAULT_TIMEOUT = 24 * 60;
+    private static final int DEFAULT_SHARDS = 1;
+    private static final String DEFAULT_OUTPUT_MARKER = "##digdag-output";
+    private static final int DEFAULT_INFRA_RETRY = 0;
+    private static final String DEFAULT_INFRA_FAILURE_PATTERN =
+            "(?i)((agent|slave)\\b.*\\b(lost|removed|disconnected|unreachable|gone)"
+                    + "|executor (lost|terminated)"
+                    + "|TASK_(LOST|UNREACHABLE|GONE|DROPPED)"
+                    + "|REASON_(AGENT|SLAVE)_)";
+    private static final double DEFAULT_SPECULATIVE_MULTIPLIER = 2.0;
+    private static final int DEFAULT_SPECULATIVE_MIN_HISTORY = 3;
+
+    private static final Pattern RETZ_SIZE_PATTERN = Pattern.compile("(\\d+)(\\D*)");
+
+    private static final int RETZ_NAME_MAX = 32;
+
+    private static final String NAME_ELLIPSIS = "..";
+
+    // options passed to Retz client only when they are given explicitly
+    private static final List<String> EXPLICIT_KEYS = ImmutableList.of(
+            "cpu", "mem", "disk", "ports", "gpu", "priority", "timeout", "tags");
+
+    private final String clientMode;
+    private final String clientCommand;
+    private final Optional<String> clientConfig;
+    private final String appName;
+    private final String remoteCommand;
+    private final List<String> env;
+    private final Supplier<Properties> envProps;
+    private final int cpu;
+    private final int memory;
+    private final int disk;
+    private final int gpu;
+    private final int ports;
+    private final int priority;
+    private final int shards;
+    private final String jobName;
+    private final List<String> tags;
+    private final int timeout;
+    private final boolean verbose;
+    private final boolean stderr;
+    private final String taskTag;
+    private final Optional<RetzLogFilter.Rules> logFilter;
+    private final boolean storeOutput;
+    private final String outputMarker;
+    private final int infraRetry;
+    private final Pattern infraFailurePattern;
+    private final boolean speculative;
+    private final double speculativeMultiplier;
+    private final int speculativeMinHistory;
+    private final String speculationTag;
+    private final ImmutableSet<String> explicitKeys;
+
+    private RetzJobSpec(Config c, TaskRequest request) {
+        List<String> errors = new ArrayList<>();
+
+        this.clientMode = check(errors, () -> c.get("client_mode", String.class, DEFAULT_CLIENT_MODE), DEFAULT_CLIENT_MODE);
+        this.clientCommand = check(errors, () -> c.get("client_cmd", String.class, DEFAULT_CLIENT_CMD), DEFAULT_CLIENT_CMD);
+        this.clientConfig = check(errors, () -> c.getOptional("client_config", String.class), Optional.absent());
+        this.appName = check(errors, () -> {
+            if (!c.has("appname")) {
+                throw new ConfigException("retz: 'appname' config is required");
+            }
+            return c.get("appname", String.class);
+        }, "");
+        this.remoteCommand = check(errors, () -> c.get("_command", String.class), "");
+        this.env = check(errors, () -> ImmutableList.copyOf(c.getListOrEmpty("env", String.class)), ImmutableList.of());
+        // parsed on first use so that the Retz client classes are not loaded unless a job is created
+        this.envProps = Suppliers.memoize(() -> SubCommand.parseKeyValuePairs(env));
+        this.cpu = check(errors, () -> c.get("cpu", Integer.class, DEFAULT_CPU), DEFAULT_CPU);
+        this.memory = check(errors, () -> convertMB(c.get("mem", String.class, DEFAULT_MEM)), 0);
+        this.disk = check(errors, () -> convertMB(c.get("disk", String.class, DEFAULT_DISK)), 0);
+        this.gpu = check(errors, () -> c.get("gpu", Integer.class, DEFAULT_GPU), DEFAULT_GPU);
+        this.ports = check(errors, () -> {
+            int value = c.get("ports", Integer.class, DEFAULT_PORTS);
+            if (value < 0 || 1000 < value) {
+                throw new ConfigException(String.format(
+                        "retz: --ports must be within 0 to 1000: %s",
+                        value));
+            }
+            return value;
+        }, DEFAULT_PORTS);
+        this.priority = check(errors, () -> c.get("priority", Integer.class, DEFAULT_PRIORITY), DEFAULT_PRIORITY);
+        this.shards = check(errors, () -> {
+            int value = c.get("shards", Integer.class, DEFAULT_SHARDS);
+            if (value < 1) {
+                throw new ConfigException(String.format(
+                        "retz: shards must be 1 or greater: %s",
+                        value));
+            }
+            return value;
+        }, DEFAULT_SHARDS);
+        this.jobName = check(errors, () -> c.getOptional("name", String.class)
+                .or(() -> generateDefaultJobName(request)), "");
+        this.tags = check(errors, () -> ImmutableList.copyOf(c.getListOrEmpty("tags", String.class)), ImmutableList.of());
+        this.timeout = check(errors, () -> c.get("timeout", Integer.class, DEFAULT_TIMEOUT), DEFAULT_TIMEOUT);
+        this.verbose = check(errors, () -> c.get("verbose", Boolean.class, false), false);
+        this.stderr = check(errors, () -> c.get("stderr", Boolean.class, true), true);
+        this.taskTag = String.format("digdag-task-%d", request.getTaskId());
+        this.logFilter = check(errors, () -> c.has("log_filter")
+                ? Optional.of(new RetzLogFilter.Rules(c.getNested("log_filter")))
+                : Optional.absent(), Optional.absent());
+        this.storeOutput = check(errors, () -> c.get("store_output", Boolean.class, false), false);
+        this.outputMarker = check(errors, () -> c.get("output_marker", String.class, DEFAULT_OUTPUT_MARKER), DEFAULT_OUTPUT_MARKER);
+        this.infraRetry = check(errors, () -> {
+            int value = c.get("infra_retry", Integer.class, DEFAULT_INFRA_RETRY);
+            if (value < 0) {
+                throw new ConfigException(String.format(
+                        "retz: infra_retry must be 0 or greater: %s",
+                        value));
+            }
+            return value;
+        }, DEFAULT_INFRA_RETRY);
+        this.infraFailurePattern = check(errors, () -> {
+            String value = c.get("infra_failure_pattern", String.class, DEFAULT_INFRA_FAILURE_PATTERN);
+            try {
+                return Pattern.compile(value);
+            } catch (PatternSyntaxException ex) {
+                throw new ConfigException(String.format(
+                        "retz: Invalid infra_failure_pattern: %s", value), ex);
+            }
+        }, Pattern.compile(DEFAULT_INFRA_FAILURE_PATTERN));
+        // `speculative: true` with the defaults, or an object with `enabled` (default: true) and the parameters
+        boolean speculativeObject = c.has("speculative") && c.get("speculative", Object.class) instanceof Map;
+        Config speculativeConfig = check(errors, () -> speculativeObject
+                ? c.getNested("speculative")
+                : c.getFactory().create(), c.getFactory().create());
+        this.speculative = check(errors, () -> speculativeObject
+                ? speculativeConfig.get("enabled", Boolean.class, true)
+                : c.get("speculative", Boolean.class, false), false);
+        this.speculativeMultiplier = check(errors,
+                () -> speculativeConfig.get("multiplier", Double.class, DEFAULT_SPECULATIVE_MULTIPLIER),
+                DEFAULT_SPECULATIVE_MULTIPLIER);
+        this.speculativeMinHistory = check(errors,
+                () -> speculativeConfig.get("min_history", Integer.class, DEFAULT_SPECULATIVE_MIN_HISTORY),
+                DEFAULT_SPECULATIVE_MIN_HISTORY);
+        this.speculationTag = generateSpeculationTag(appName,
+                c.getOptional("name", String.class).or(request.getTaskName()));
+
+        ImmutableSet.Builder<String> explicitKeys = ImmutableSet.builder();
+        for (String key : EXPLICIT_KEYS) {
+            if (c.has(key)) {
+                explicitKeys.add(key);
+            }
+        }
+        this.explicitKeys = explicitKeys.build();
+
+        if (!errors.isEmpty()) {
+            throw new ConfigException(String.join("; ", errors));
+        }
+    }
+
+    static RetzJobSpec compile(Config retzConfig, TaskRequest request) {
+        return new RetzJobSpec(retzConfig, request);
+    }
+
+    String getClientMode() {
+        return clientMode;
+    }
+
+    String getClientCommand() {
+        return clientCommand;
+    }
+
+    Optional<String> getClientConfig() {
+        return clientConfig;
+    }
+
+    String getAppName() {
+        return appName;
+    }
+
+    String getRemoteCommand() {
+        return remoteCommand;
+    }
+
+    List<String> getEnv() {
+        return env;
+    }
+
+    /*
+     * Returns a new copy which the caller can modify
+     */
+    Properties getEnvProps() {
+        Properties props = new Properties();
+        props.putAll(envProps.get());
+        return props;
+    }
+
+    int getCpu() {
+        return cpu;
+    }
+
+    int getMemory() {
+        return memory;
+    }
+
+    int getDisk() {
+        return disk;
+    }
+
+    int getGpu() {
+        return gpu;
+    }
+
+    int getPorts() {
+        return ports;
+    }
+
+    int getPriority() {
+        return priority;
+    }
+
+    int getShards() {
+        return shards;
+    }
+
+    String getJobName() {
+        return jobName;
+    }
+
+    List<String> getTags() {
+        return tags;
+    }
+
+    int getTimeout() {
+        return timeout;
+    }
+
+    boolean getVerbose() {
+        return verbose;
+    }
+
+    boolean getStdErr() {
+        return stderr;
+    }
+
+    /*
+     * Tag to identify jobs scheduled by a task, used to kill orphaned jobs
+     */
+    String getTaskTag() {
+        return taskTag;
+    }
+
+    Optional<RetzLogFilter.Rules> getLogFilter() {
+        return logFilter;
+    }
+
+    boolean getStoreOutput() {
+        return storeOutput;
+    }
+
+    String getOutputMarker() {
+        return outputMarker;
+    }
+
+    int getInfraRetry() {
+        return infraRetry;
+    }
+
+    Pattern getInfraFailurePattern() {
+        return infraFailurePattern;
+    }
+
+    boolean isSpeculative() {
+        return speculative;
+    }
+
+    double getSpeculativeMultiplier() {
+        return speculativeMultiplier;
+    }
+
+    int getSpeculativeMinHistory() {
+        return speculativeMinHistory;
+    }
+
+    /*
+     * Tag to collect durations of the past jobs for speculative execution.
+     * Default job name contains attempt id, so task name is used unless `name` is given.
+     */
+    String getSpeculationTag() {
+        return speculationTag;
+    }
+
+    /*
+     * Returns true if the option is given explicitly
+     */
+    boolean has(String key) {
+        return explicitKeys.contains(key);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "client_mode:%s, client_config:%s, appname:%s, env:%s, cpu:%s, mem:%s, disk:%s, gpu:%s, ports:%s, priority:%s, shards:%s, name:%s, tags:%s, timeout:%s, verbose:%s, stderr:%s",
+                clientMode, clientConfig, appName, env, cpu, memory, disk, gpu, ports, priority, shards,
+                jobName, tags, timeout, verbose, stderr);
+    }
+
+    private static <T> T check(List<String> errors, Supplier<T> getter, T fallback) {
+        try {
+            return getter.get();
+        } catch (ConfigException ex) {
+            errors.add(ex.getMessage());
+            return fallback;
+        }
+    }
+
+    private static String generateSpeculationTag(String appName, String name) {
+        String key = appName + "\n" + name;
+        return "digdag-spec-" + Hashing.sha256().hashString(key, UTF_8).toString().substring(0, 16);
+    }
+
+    private static String generateDefaultJobName(TaskRequest request) {
+        /*
+         * prefix of default job name:
+         *   <attempt-id>
+         *
+         * default job name:
+         *   (1) <prefix-head>..
+         *   (2) <prefix>
+         *   (3) <prefix>:..<task-name-tail>
+         *   (4) <prefix>:<task-name>
+         */
+
+        String prefix = String.format("%d", request.getAttemptId());
+        String taskName = request.getTaskName();
+
+        // (1) <prefix-head>..
+        if (prefix.length() > RETZ_NAME_MAX) {
+            return prefix.substring(0, RETZ_NAME_MAX - NAME_ELLIPSIS.length()) + NAME_ELLIPSIS;
+        }
+
+        // (2) <prefix>
+        //   we avoid non-ASCII characters for Retz database
+        if (prefix.length() > RETZ_NAME_MAX - 2 - NAME_ELLIPSIS.length()
+                || taskName.chars().anyMatch(it -> it > 0x7f)) {
+            return prefix;
+        }
+
+        String candidate = String.format("%s:%s", prefix, taskName);
+
+        // (3) <prefix>:..<task-name-tail>
+        if (candidate.length() > RETZ_NAME_MAX) {
+            String prefixPlus = String.format("%s:%s", prefix, NAME_ELLIPSIS);
+            String taskNameTail = taskName.substring(
+                    taskName.length() - (RETZ_NAME_MAX - prefixPlus.length()), taskName.length());
+            return String.format("%s%s", prefixPlus, taskNameTail);
+        }
+
+        // (4) <prefix>:<task-name>
+        return candidate;
+    }
+
+    private static Integer convertMB(String value) {
+        final Matcher matcher = RETZ_SIZE_PATTERN.matcher(value);
+        if (!matcher.matches()) {
+            throw new ConfigException(MessageFormat.format(
+                    "retz: Invalid size: {0}",
+                    value));
+        }
+        int count = Integer.parseInt(matcher.group(1));
+        String unit = matcher.group(2);
+        switch (unit.toLowerCase(Locale.ENGLISH)) {
+            case "":
+            case "m":
+            case "mb":
+                return count;
+            case "g":
+            case "gb":
+                return count * 1024;
+            case "t":
+            case "tb":
+                return count * 1024 * 1024;
+            default:
+                throw new ConfigException(MessageFormat.format(
+                        "retz: Invalid size (unsupported size unit): {0}",
+                        value));
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package io.github.retz.digdag.plugin;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ * Line based filter of job logs:
+ *   (1) collapse progress bars: keep the last segment of lines rewritten by '\r'
+ *   (2) keep lines matching `include` patterns (error lines by default)
+ *   (3) drop lines matching `exclude` patterns
+ *   (4) sample repeated lines: keep 1 of `sample` consecutive lines of the same shape (digits ignored)
+ *
+ * The shape of the last line is kept as a fixed-size hash, so that the sampling state stays small.
+ *
+ * Incomplete lines are held until a line feed arrives, or processed as a line on finish().
+ * The held line and the sampling state are kept by the caller across pollings, as RetzOutputScanner does.
+ */
+class RetzLogFilter extends OutputStream {
+
+    private static final String DEFAULT_INCLUDE = "(?i)\\b(error|exception|fatal)\\b";
+
+    private static final Pattern DIGITS = Pattern.compile("\\d+");
+
+    private static final int MAX_LINE_LENGTH = 65536;
+
+    private static final HashFunction SHAPE_HASH = Hashing.murmur3_128();
+
+    /*
+     * Compiled `log_filter` options, shared by all polling of a task
+     */
+    static final class Rules {
+        private final List<Pattern> includes;
+        private final List<Pattern> excludes;
+        private final int sampleRate;
+        private final boolean collapseProgress;
+
+        Rules(Config filterConfig) {
+            this.includes = compile(filterConfig.has("include")
+                    ? filterConfig.getList("include", String.class)
+                    : ImmutableList.of(DEFAULT_INCLUDE));
+            this.excludes = compile(filterConfig.getListOrEmpty("exclude", String.class));
+            this.sampleRate = filterConfig.get("sample", Integer.class, 1);
+            this.collapseProgress = filterConfig.get("collapse_progress", Boolean.class, true);
+            if (sampleRate < 1) {
+                throw new ConfigException(String.format(
+                        "retz: log_filter.sample must be 1 or greater: %s",
+                        sampleRate));
+            }
+        }
+    }
+
+    private final OutputStream out;
+    private final List<Pattern> includes;
+    private final List<Pattern> excludes;
+    private final int sampleRate;
+    private final boolean collapseProgress;
+
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream kept = new ByteArrayOutputStream();
+
+    private String lastShapeHash;
+    private long repeats;
+
+    private long droppedLines;
+    private long droppedBytes;
+
+    RetzLogFilter(OutputStream out, Rules rules, byte[] pending, Optional<String> lastShapeHash, long repeats) {
+        this.out = out;
+        this.includes = rules.includes;
+        this.excludes = rules.excludes;
+        this.sampleRate = rules.sampleRate;
+        this.collapseProgress = rules.collapseProgress;
+        this.line.write(pending, 0, pending.length);
+        this.lastShapeHash = lastShapeHash.orNull();
+        this.repeats = repeats;
+    }
+
+    /*
+     * Incomplete line held for the next polling
+     */
+    byte[] getPending() {
+        return line.toByteArray();
+    }
+
+    Optional<String> getLastShapeHash() {
+        return Optional.fromNullable(lastShapeHash);
+    }
+
+    long getRepeats() {
+        return repeats;
+    }
+
+    long getDroppedLines() {
+        return droppedLines;
+    }
+
+    long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int start = off;
+        for (int i = off; i < off + len; i++) {
+            if (b[i] == '\n') {
+                line.write(b, start, i + 1 - start);
+                processLine();
+                start = i + 1;
+            }
+        }
+        if (start < off + len) {
+            line.write(b, start, off + len - start);
+            if (line.size() >= MAX_LINE_LENGTH) {
+                processLine();
+            }
+        }
+        drain();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    /*
+     * Processes the incomplete line as the last line of the file
+     */
+    void finish() throws IOException {
+        if (line.size() > 0) {
+            processLine();
+        }
+        flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+    private void processLine() {
+        byte[] bytes = line.toByteArray();
+        line.reset();
+
+        int start = collapseProgress ? lastProgressSegment(bytes) : 0;
+        droppedBytes += start;
+
+        String text = new String(bytes, start, bytes.length - start, UTF_8);
+        if (keep(text)) {
+            kept.write(bytes, start, bytes.length - start);
+        } else {
+            droppedLines++;
+            droppedBytes += bytes.length - start;
+        }
+    }
+
+    private boolean keep(String text) {
+        for (Pattern include : includes) {
+            if (include.matcher(text).find()) {
+                return true;
+            }
+        }
+        for (Pattern exclude : excludes) {
+            if (exclude.matcher(text).find()) {
+                return false;
+            }
+        }
+        if (sampleRate > 1) {
+            String shapeHash = SHAPE_HASH.hashString(DIGITS.matcher(text).replaceAll("0"), UTF_8).toString();
+            if (shapeHash.equals(lastShapeHash)) {
+                repeats++;
+                return repeats % sampleRate == 0;
+            }
+            lastShapeHash = shapeHash;
+            repeats = 0;
+        }
+        return true;
+    }
+
+    private void drain() throws IOException {
+        if (kept.size() > 0) {
+            kept.writeTo(out);
+            kept.reset();
+        }
+    }
+
+    private static int lastProgressSegment(byte[] bytes) {
+        // ignore trailing "\r\n" or "\n"
+        int end = bytes.length;
+        if (end > 0 && bytes[end - 1] == '\n') {
+            end--;
+        }
+        if (end > 0 && bytes[end - 1] == '\r') {
+            end--;
+        }
+        for (int i = end - 1; i >= 0; i--) {
+            if (bytes[i] == '\r') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private static List<Pattern> compile(List<String> regexes) {
+        ImmutableList.Builder<Pattern> patterns = ImmutableList.builder();
+        for (String regex : regexes) {
+            try {
+                patterns.add(Pattern.compile(regex));
+            } catch (PatternSyntaxException ex) {
+                throw new ConfigException(String.format(
+                        "retz: Invalid log_filter pattern: %s", regex), ex);
+            }
+        }
+        return patterns.build();
+    }
+}
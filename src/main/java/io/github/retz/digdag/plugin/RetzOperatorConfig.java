@@ -1,23 +1,23 @@
 package io.github.retz.digdag.plugin;
 
 import com.google.common.base.Optional;
+import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import io.digdag.client.config.Config;
 import io.digdag.client.config.ConfigException;
 import io.digdag.spi.TaskRequest;
 import io.digdag.util.Workspace;
 import io.github.retz.cli.FileConfiguration;
-import io.github.retz.cli.SubCommand;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.text.MessageFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 class RetzOperatorConfig {
 
@@ -26,57 +26,71 @@ class RetzOperatorConfig {
     static final String KEY_CONFIG_ROOT = "retz";
 
     static final String KEY_SYSCONF_SERVER_URI = KEY_CONFIG_ROOT + ".server.uri";
+    static final String KEY_SYSCONF_SERVER_URIS = KEY_CONFIG_ROOT + ".server.uris";
+    static final String KEY_SYSCONF_SERVER_ROUTING = KEY_CONFIG_ROOT + ".server.routing";
+    static final String KEY_SYSCONF_SERVER_WEIGHTS = KEY_CONFIG_ROOT + ".server.weights";
     static final String KEY_SYSCONF_AUTH_ENABLED = KEY_CONFIG_ROOT + ".authentication";
     static final String KEY_SYSCONF_ACCESS_KEY = KEY_CONFIG_ROOT + ".access.key";
     static final String KEY_SYSCONF_ACCESS_SECRET = KEY_CONFIG_ROOT + ".access.secret";
+    static final String KEY_SYSCONF_TRACING_EXPORTER = KEY_CONFIG_ROOT + ".tracing.exporter";
+    static final String KEY_SYSCONF_TRACING_FILE = KEY_CONFIG_ROOT + ".tracing.file";
+    static final String KEY_SYSCONF_LOG_TRANSPORT = KEY_CONFIG_ROOT + ".log.transport";
+    static final String KEY_SYSCONF_QUOTA_PREFIX = KEY_CONFIG_ROOT + ".quota.";
+    static final String KEY_SYSCONF_QUOTA_TAG_PREFIX = KEY_SYSCONF_QUOTA_PREFIX + "tag.";
+    static final String KEY_SYSCONF_QUOTA_LEASE_TIMEOUT = KEY_CONFIG_ROOT + ".quota-lease-timeout";
 
     private static final String KEY_SYSCONF_MIN_POLL_INTERVAL = KEY_CONFIG_ROOT + ".min-poll-interval";
     private static final String KEY_SYSCONF_MAX_POLL_INTERVAL = KEY_CONFIG_ROOT + ".max-poll-interval";
+    private static final String DEFAULT_SERVER_ROUTING = "least-queued";
+    private static final String DEFAULT_TRACING_EXPORTER = "log";
+    private static final int DEFAULT_QUOTA_LEASE_TIMEOUT = 10 * 60;
+    private static final String DEFAULT_LOG_TRANSPORT = "auto";
+
     private static final int DEFAULT_MIN_POLL_INTERVAL = 1;
     private static final int DEFAULT_MAX_POLL_INTERVAL = 20;
 
-    private static final String DEFAULT_CLIENT_CMD = "/opt/retz-client/bin/retz-client";
-    private static final int DEFAULT_CPU = 1;
-    private static final String DEFAULT_MEM = "32MB";
-    private static final String DEFAULT_DISK = "32MB";
-    private static final int DEFAULT_GPU = 0;
-    private static final int DEFAULT_PORTS = 0;
-    private static final int DEFAULT_PRIORITY = 0;
-    private static final int DEFAULT_TIMEOUT = 24 * 60;
-
-    private static final Pattern RETZ_SIZE_PATTERN = Pattern.compile("(\\d+)(\\D*)");
-
-    private static final int RETZ_NAME_MAX = 32;
+    private static final String KEY_SYSCONF_POLL_ROOT = KEY_CONFIG_ROOT + ".poll";
+    private static final String KEY_SYSCONF_HIGH_PRIORITY = KEY_SYSCONF_POLL_ROOT + ".high.priority";
+    private static final String KEY_SYSCONF_LOW_PRIORITY = KEY_SYSCONF_POLL_ROOT + ".low.priority";
+    private static final String KEY_SYSCONF_DEADLINE_WINDOW = KEY_SYSCONF_POLL_ROOT + ".deadline-window";
+    private static final int DEFAULT_HIGH_PRIORITY = -1;
+    private static final int DEFAULT_LOW_PRIORITY = 1;
+    private static final int DEFAULT_HIGH_MAX_POLL_INTERVAL = 5;
+    private static final int DEFAULT_LOW_MIN_POLL_INTERVAL = 2;
+    private static final int DEFAULT_LOW_MAX_POLL_INTERVAL = 60;
+    private static final int DEFAULT_DEADLINE_WINDOW = 5 * 60;
 
-    private static final String NAME_ELLIPSIS = "..";
+    private static final Splitter LIST_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
 
-    private final TaskRequest taskRequest;
     private final Config retzConfig;
     private final Config systemConfig;
+    private final RetzJobSpec jobSpec;
 
     RetzOperatorConfig(TaskRequest taskRequest, Config systemConfig) {
-        this.taskRequest = taskRequest;
         this.retzConfig = taskRequest.getConfig().mergeDefault(
                 taskRequest.getConfig().getNestedOrGetEmpty(KEY_CONFIG_ROOT));
         this.systemConfig = systemConfig;
 
-        // TODO interim fix for error log: "Parameter 'xx' is not used at task ..."
-        dumpConfig();
+        // reading all options here also avoids error log: "Parameter 'xx' is not used at task ..."
+        this.jobSpec = RetzJobSpec.compile(retzConfig, taskRequest);
+        LOGGER.debug("{}", jobSpec);
+        if (jobSpec.getClientConfig().isPresent()) {
+            LOGGER.warn("'client_config' is deprecated. use '{}' on digdag configuration property instead.",
+                    KEY_SYSCONF_SERVER_URI);
+        }
     }
 
     Config getRetzConfig() {
         return retzConfig;
     }
 
-    String getClientMode() {
-        return retzConfig.get("client_mode", String.class, "api");
+    RetzJobSpec getJobSpec() {
+        return jobSpec;
     }
 
     Optional<String> getClientConfig(Workspace workspace) {
-        Optional<String> config = retzConfig.getOptional("client_config", String.class);
+        Optional<String> config = jobSpec.getClientConfig();
         if (config.isPresent()) {
-            LOGGER.warn("'client_config' is deprecated. use '{}' on digdag configuration property instead.",
-                    KEY_SYSCONF_SERVER_URI);
             if (!new File(config.get()).isAbsolute()) {
                 config = Optional.of(workspace.getPath(config.get()).toString());
             }
@@ -84,112 +98,178 @@ class RetzOperatorConfig {
         return config;
     }
 
-    String getAppName() {
-        if (!retzConfig.has("appname")) {
-            throw new ConfigException("retz: 'appname' config is required");
+    Optional<String> getServerUri() {
+        return systemConfig.getOptional(KEY_SYSCONF_SERVER_URI, String.class);
+    }
+
+    List<String> getServerUris() {
+        Optional<String> uris = systemConfig.getOptional(KEY_SYSCONF_SERVER_URIS, String.class);
+        if (uris.isPresent()) {
+            return LIST_SPLITTER.splitToList(uris.get());
         }
-        return retzConfig.get("appname", String.class);
+        return getServerUri().asSet().stream().collect(Collectors.toList());
+    }
+
+    String getServerRouting() {
+        return systemConfig.get(KEY_SYSCONF_SERVER_ROUTING, String.class, DEFAULT_SERVER_ROUTING);
     }
 
-    String getRemoteCommand() {
-        return retzConfig.get("_command", String.class);
+    List<Integer> getServerWeights() {
+        String weights = systemConfig.get(KEY_SYSCONF_SERVER_WEIGHTS, String.class, "");
+        try {
+            return LIST_SPLITTER.splitToList(weights).stream()
+                    .map(Integer::valueOf)
+                    .collect(Collectors.toList());
+        } catch (NumberFormatException ex) {
+            throw new ConfigException(String.format(
+                    "Invalid '%s': %s", KEY_SYSCONF_SERVER_WEIGHTS, weights), ex);
+        }
     }
 
-    Properties getEnvProps() {
-        return SubCommand.parseKeyValuePairs(
-                retzConfig.getListOrEmpty("env", String.class));
+    Optional<String> getAuthenticationEnabled() {
+        return systemConfig.getOptional(KEY_SYSCONF_AUTH_ENABLED, String.class);
     }
 
-    int getCpu() {
-        return retzConfig.get("cpu", Integer.class, DEFAULT_CPU);
+    Optional<String> getAccessKey() {
+        return systemConfig.getOptional(KEY_SYSCONF_ACCESS_KEY, String.class);
     }
 
-    int getMemory() {
-        String value = retzConfig.get("mem", String.class, DEFAULT_MEM);
-        return convertMB(value);
+    Optional<String> getAccessSecret() {
+        return systemConfig.getOptional(KEY_SYSCONF_ACCESS_SECRET, String.class);
     }
 
-    int getDisk() {
-        String value = retzConfig.get("disk", String.class, DEFAULT_DISK);
-        return convertMB(value);
+    int getMinPollInterval() {
+        return systemConfig.get(KEY_SYSCONF_MIN_POLL_INTERVAL, Integer.class, DEFAULT_MIN_POLL_INTERVAL);
     }
 
-    int getGpu() {
-        return retzConfig.get("gpu", Integer.class, DEFAULT_GPU);
+    int getMaxPollInterval() {
+        return systemConfig.get(KEY_SYSCONF_MAX_POLL_INTERVAL, Integer.class, DEFAULT_MAX_POLL_INTERVAL);
     }
 
-    int getPorts() {
-        int ports = retzConfig.get("ports", Integer.class, DEFAULT_PORTS);
-        if (ports < 0 || 1000 < ports) {
-            throw new ConfigException(String.format(
-                    "retz: --ports must be within 0 to 1000: %s",
-                    ports));
+    /*
+     * Tier defaults are derived from the normal bounds, so that high priority jobs are never
+     * polled less often, and low priority jobs never more often, than normal ones.
+     */
+    int getMinPollInterval(RetzPollingPolicy.Tier tier) {
+        switch (tier) {
+            case HIGH:
+                return systemConfig.get(getPollTierKey(tier, "min-interval"), Integer.class, getMinPollInterval());
+            case LOW:
+                return systemConfig.get(getPollTierKey(tier, "min-interval"), Integer.class,
+                        Math.max(DEFAULT_LOW_MIN_POLL_INTERVAL, getMinPollInterval()));
+            default:
+                return getMinPollInterval();
         }
-        return ports;
     }
 
-    int getPriority() {
-        return retzConfig.get("priority", Integer.class, DEFAULT_PRIORITY);
+    int getMaxPollInterval(RetzPollingPolicy.Tier tier) {
+        switch (tier) {
+            case HIGH:
+                return systemConfig.get(getPollTierKey(tier, "max-interval"), Integer.class,
+                        Math.min(DEFAULT_HIGH_MAX_POLL_INTERVAL, getMaxPollInterval()));
+            case LOW:
+                return systemConfig.get(getPollTierKey(tier, "max-interval"), Integer.class,
+                        Math.max(DEFAULT_LOW_MAX_POLL_INTERVAL, getMaxPollInterval()));
+            default:
+                return getMaxPollInterval();
+        }
     }
 
-    String getJobName() {
-        return retzConfig.get("name", String.class, generateDefaultJobName(taskRequest));
+    int getHighPriorityThreshold() {
+        return systemConfig.get(KEY_SYSCONF_HIGH_PRIORITY, Integer.class, DEFAULT_HIGH_PRIORITY);
     }
 
-    List<String> getTags() {
-        return retzConfig.getListOrEmpty("tags", String.class);
+    int getLowPriorityThreshold() {
+        return systemConfig.get(KEY_SYSCONF_LOW_PRIORITY, Integer.class, DEFAULT_LOW_PRIORITY);
     }
 
-    int getTimeout() {
-        return retzConfig.get("timeout", Integer.class, DEFAULT_TIMEOUT);
+    int getDeadlinePollWindow() {
+        return systemConfig.get(KEY_SYSCONF_DEADLINE_WINDOW, Integer.class, DEFAULT_DEADLINE_WINDOW);
     }
 
-    boolean getVerbose() {
-        return retzConfig.get("verbose", Boolean.class, false);
+    String getTracingExporter() {
+        return systemConfig.get(KEY_SYSCONF_TRACING_EXPORTER, String.class, DEFAULT_TRACING_EXPORTER);
     }
 
-    Optional<String> getServerUri() {
-        return systemConfig.getOptional(KEY_SYSCONF_SERVER_URI, String.class);
+    Optional<String> getTracingFile() {
+        return systemConfig.getOptional(KEY_SYSCONF_TRACING_FILE, String.class);
     }
 
-    Optional<String> getAuthenticationEnabled() {
-        return systemConfig.getOptional(KEY_SYSCONF_AUTH_ENABLED, String.class);
+    /*
+     * Retz client settings of the servers given by `retz.server.uri(s)`, with the defaults of Retz client
+     */
+    ClientConfig getServerClientConfig() {
+        Properties p = new Properties();
+        if (getAuthenticationEnabled().isPresent()) {
+            p.setProperty(KEY_SYSCONF_AUTH_ENABLED, getAuthenticationEnabled().get());
+        }
+        if (getAccessKey().isPresent()) {
+            p.setProperty(KEY_SYSCONF_ACCESS_KEY, getAccessKey().get());
+        }
+        if (getAccessSecret().isPresent()) {
+            p.setProperty(KEY_SYSCONF_ACCESS_SECRET, getAccessSecret().get());
+        }
+        return new ClientConfig(p);
     }
 
-    Optional<String> getAccessKey() {
-        return systemConfig.getOptional(KEY_SYSCONF_ACCESS_KEY, String.class);
+    boolean getRawLogTransport() {
+        String transport = systemConfig.get(KEY_SYSCONF_LOG_TRANSPORT, String.class, DEFAULT_LOG_TRANSPORT);
+        switch (transport) {
+            case "auto":
+                return true;
+            case "json":
+                return false;
+            default:
+                throw new ConfigException(String.format(
+                        "Invalid '%s': %s", KEY_SYSCONF_LOG_TRANSPORT, transport));
+        }
     }
 
-    Optional<String> getAccessSecret() {
-        return systemConfig.getOptional(KEY_SYSCONF_ACCESS_SECRET, String.class);
+    /*
+     * Quota limits which apply to the job, keyed by "appname:<appname>" or "tag:<tag>"
+     */
+    Map<String, Integer> getQuotaLimits() {
+        Map<String, Integer> limits = new LinkedHashMap<>();
+        putQuotaLimit(limits, "appname:" + jobSpec.getAppName(), KEY_SYSCONF_QUOTA_PREFIX + jobSpec.getAppName());
+        for (String tag : jobSpec.getTags()) {
+            putQuotaLimit(limits, "tag:" + tag, KEY_SYSCONF_QUOTA_TAG_PREFIX + tag);
+        }
+        return limits;
     }
 
-    int getMinPollInterval() {
-        return systemConfig.get(KEY_SYSCONF_MIN_POLL_INTERVAL, Integer.class, DEFAULT_MIN_POLL_INTERVAL);
+    private void putQuotaLimit(Map<String, Integer> limits, String quotaKey, String key) {
+        Optional<Integer> limit = systemConfig.getOptional(key, Integer.class);
+        if (limit.isPresent()) {
+            if (limit.get() < 1) {
+                throw new ConfigException(String.format(
+                        "'%s' must be 1 or greater: %s", key, limit.get()));
+            }
+            limits.put(quotaKey, limit.get());
+        }
     }
 
-    int getMaxPollInterval() {
-        return systemConfig.get(KEY_SYSCONF_MAX_POLL_INTERVAL, Integer.class, DEFAULT_MAX_POLL_INTERVAL);
+    int getQuotaLeaseTimeout() {
+        return systemConfig.get(KEY_SYSCONF_QUOTA_LEASE_TIMEOUT, Integer.class, DEFAULT_QUOTA_LEASE_TIMEOUT);
     }
 
-    private boolean getStdErr() {
-        return retzConfig.get("stderr", Boolean.class, true);
+    private static String getPollTierKey(RetzPollingPolicy.Tier tier, String name) {
+        return String.format("%s.%s.%s", KEY_SYSCONF_POLL_ROOT, tier.name().toLowerCase(Locale.ENGLISH), name);
     }
 
     void addClientCommand(ImmutableList.Builder<String> command) {
-        File clientPath = new File(retzConfig.get("client_cmd", String.class, DEFAULT_CLIENT_CMD));
+        File clientPath = new File(jobSpec.getClientCommand());
         command.add(clientPath.getAbsolutePath());
     }
 
     void addClientConfig(ImmutableList.Builder<String> command, Workspace workspace) {
-        if (getClientConfig(workspace).isPresent()) {
-            command.add("-C").add(getClientConfig(workspace).get());
+        Optional<String> clientConfig = getClientConfig(workspace);
+        if (clientConfig.isPresent()) {
+            command.add("-C").add(clientConfig.get());
         }
     }
 
     void addVerbose(ImmutableList.Builder<String> command) {
-        boolean verbose = getVerbose();
-        if (verbose) {
+        if (jobSpec.getVerbose()) {
             command.add("-v");
         }
     }
@@ -199,173 +279,79 @@ class RetzOperatorConfig {
     }
 
     void addAppName(ImmutableList.Builder<String> command) {
-        command.add("-A").add(getAppName());
+        command.add("-A").add(jobSpec.getAppName());
     }
 
     void addJobName(ImmutableList.Builder<String> command) {
-        command.add("-N").add(getJobName());
+        command.add("-N").add(jobSpec.getJobName());
     }
 
     void addCpu(ImmutableList.Builder<String> command) {
-        if (retzConfig.has("cpu")) {
-            command.add("--cpu").add(String.valueOf(getCpu()));
+        if (jobSpec.has("cpu")) {
+            command.add("--cpu").add(String.valueOf(jobSpec.getCpu()));
         }
     }
 
     void addMemory(ImmutableList.Builder<String> command) {
-        if (retzConfig.has("mem")) {
-            command.add("--mem").add(String.valueOf(getMemory()));
+        if (jobSpec.has("mem")) {
+            command.add("--mem").add(String.valueOf(jobSpec.getMemory()));
         }
     }
 
     void addDisk(ImmutableList.Builder<String> command) {
-        if (retzConfig.has("disk")) {
-            command.add("--disk").add(String.valueOf(getDisk()));
+        if (jobSpec.has("disk")) {
+            command.add("--disk").add(String.valueOf(jobSpec.getDisk()));
         }
     }
 
     void addPorts(ImmutableList.Builder<String> command) {
-        if (retzConfig.has("ports")) {
-            command.add("--ports").add(String.valueOf(getPorts()));
+        if (jobSpec.has("ports")) {
+            command.add("--ports").add(String.valueOf(jobSpec.getPorts()));
         }
     }
 
     void addGpu(ImmutableList.Builder<String> command) {
-        if (retzConfig.has("gpu")) {
-            command.add("--gpu").add(String.valueOf(getGpu()));
+        if (jobSpec.has("gpu")) {
+            command.add("--gpu").add(String.valueOf(jobSpec.getGpu()));
         }
     }
 
     void addPriority(ImmutableList.Builder<String> command) {
-        if (retzConfig.has("priority")) {
-            command.add("--prio").add(String.valueOf(getPriority()));
+        if (jobSpec.has("priority")) {
+            command.add("--prio").add(String.valueOf(jobSpec.getPriority()));
         }
     }
 
     void addStdErr(ImmutableList.Builder<String> command) {
-        boolean stderr = getStdErr();
-        if (stderr) {
+        if (jobSpec.getStdErr()) {
             command.add("--stderr");
         }
     }
 
     void addTimeout(ImmutableList.Builder<String> command) {
-        if (retzConfig.has("timeout")) {
-            command.add("--timeout").add(String.valueOf(getTimeout()));
+        if (jobSpec.has("timeout")) {
+            command.add("--timeout").add(String.valueOf(jobSpec.getTimeout()));
         }
     }
 
     void addEnv(ImmutableList.Builder<String> command) {
-        if (retzConfig.has("env")) {
-            List<String> envList = retzConfig.getList("env", String.class);
-            for (String env : envList) {
-                command.add("-E").add(env);
-            }
+        for (String env : jobSpec.getEnv()) {
+            command.add("-E").add(env);
         }
     }
 
     void addTags(ImmutableList.Builder<String> command) {
-        if (retzConfig.has("tags")) {
-            command.add("--tags").add(String.join(",", getTags()));
+        if (jobSpec.has("tags")) {
+            command.add("--tags").add(String.join(",", jobSpec.getTags()));
         }
-
     }
 
     void addRemoteCommand(ImmutableList.Builder<String> command) {
-        command.add("-c").add(getRemoteCommand());
+        command.add("-c").add(jobSpec.getRemoteCommand());
         // command.add("-c").add("-");
         // UserSecretTemplate.of(getRemoteCommand()).format(context.getSecrets());
     }
 
-    private String generateDefaultJobName(TaskRequest request) {
-        /*
-         * prefix of default job name:
-         *   <attempt-id>
-         *
-         * default job name:
-         *   (1) <prefix-head>..
-         *   (2) <prefix>
-         *   (3) <prefix>:..<task-name-tail>
-         *   (4) <prefix>:<task-name>
-         */
-
-        String prefix = String.format("%d", request.getAttemptId());
-        String taskName = request.getTaskName();
-
-        // (1) <prefix-head>..
-        if (prefix.length() > RETZ_NAME_MAX) {
-            return prefix.substring(0, RETZ_NAME_MAX - NAME_ELLIPSIS.length()) + NAME_ELLIPSIS;
-        }
-
-        // (2) <prefix>
-        //   we avoid non-ASCII characters for Retz database
-        if (prefix.length() > RETZ_NAME_MAX - 2 - NAME_ELLIPSIS.length()
-                || taskName.chars().anyMatch(it -> it > 0x7f)) {
-            return prefix;
-        }
-
-        String candidate = String.format("%s:%s", prefix, taskName);
-
-        // (3) <prefix>:..<task-name-tail>
-        if (candidate.length() > RETZ_NAME_MAX) {
-            String prefixPlus = String.format("%s:%s", prefix, NAME_ELLIPSIS);
-            String taskNameTail = taskName.substring(
-                    taskName.length() - (RETZ_NAME_MAX - prefixPlus.length()), taskName.length());
-            return String.format("%s%s", prefixPlus, taskNameTail);
-        }
-
-        // (4) <prefix>:<task-name>
-        return candidate;
-    }
-
-    private Integer convertMB(String value) {
-        final Matcher matcher = RETZ_SIZE_PATTERN.matcher(value);
-        if (!matcher.matches()) {
-            throw new ConfigException(MessageFormat.format(
-                    "retz: Invalid size: {0}",
-                    value));
-        }
-        int count = Integer.parseInt(matcher.group(1));
-        String unit = matcher.group(2);
-        switch (unit.toLowerCase(Locale.ENGLISH)) {
-            case "":
-            case "m":
-            case "mb":
-                return count;
-            case "g":
-            case "gb":
-                return count * 1024;
-            case "t":
-            case "tb":
-                return count * 1024 * 1024;
-            default:
-                throw new ConfigException(MessageFormat.format(
-                        "retz: Invalid size (unsupported size unit): {0}",
-                        value));
-        }
-    }
-
-    private void dumpConfig() {
-        LOGGER.debug(
-                "client_mode:{}, client_config:{}, appname:{}, env:{}, cpu:{}, mem:{}, disk:{}, gpu:{}, ports:{}, priority:{}, name:{}, tags:{}, timeout:{}, verbose:{}, stderr:{}",
-                retzConfig.getOptional("client_mode", String.class),
-                retzConfig.getOptional("client_config", String.class),
-                retzConfig.getOptional("appname", String.class),
-                retzConfig.getListOrEmpty("env", String.class),
-                retzConfig.getOptional("cpu", Integer.class),
-                retzConfig.getOptional("mem", String.class),
-                retzConfig.getOptional("disk", String.class),
-                retzConfig.getOptional("gpu", Integer.class),
-                retzConfig.getOptional("ports", Integer.class),
-                retzConfig.getOptional("priority", Integer.class),
-                retzConfig.getOptional("name", String.class),
-                retzConfig.getListOrEmpty("tags", String.class),
-                retzConfig.getOptional("timeout", Integer.class),
-                retzConfig.getOptional("verbose", Boolean.class),
-                retzConfig.getOptional("stderr", Boolean.class)
-        );
-    }
-
     static class ClientConfig extends FileConfiguration {
 
         ClientConfig(Properties p) {
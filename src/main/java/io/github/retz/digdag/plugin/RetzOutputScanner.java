@@ -0,0 +1,118 @@
+package io.github.retz.digdag.plugin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ * Passes through job output while capturing lines which start with the marker (e.g. "##digdag-output {...}").
+ * Only lines matching the marker are buffered, up to MAX_LINE_LENGTH bytes.
+ * A marker line which is not terminated yet is kept as `pending` so that scanning can resume in the next polling.
+ */
+class RetzOutputScanner extends OutputStream {
+
+    static final int MAX_LINE_LENGTH = 16384;
+
+    private final OutputStream out;
+    private final byte[] marker;
+
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private boolean skipping;
+    private int position;
+
+    private final List<String> outputs = new ArrayList<>();
+    private long overflows;
+
+    RetzOutputScanner(OutputStream out, String marker, byte[] pending, boolean skipping) {
+        this.out = out;
+        this.marker = marker.getBytes(UTF_8);
+        this.line.write(pending, 0, pending.length);
+        this.position = skipping ? 0 : pending.length;
+        this.skipping = skipping;
+    }
+
+    /*
+     * Payloads of the marker lines found so far, without the marker
+     */
+    List<String> getOutputs() {
+        return outputs;
+    }
+
+    byte[] getPending() {
+        return line.toByteArray();
+    }
+
+    boolean isSkipping() {
+        return skipping;
+    }
+
+    long getOverflows() {
+        return overflows;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        for (int i = off; i < off + len; i++) {
+            scan(b[i]);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /*
+     * Takes the marker line not terminated yet as the last line of the output
+     */
+    void finish() {
+        scan((byte) '\n');
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    private void scan(byte b) {
+        if (b == '\n') {
+            if (!skipping && position >= marker.length) {
+                byte[] bytes = line.toByteArray();
+                outputs.add(new String(bytes, marker.length, bytes.length - marker.length, UTF_8).trim());
+            }
+            line.reset();
+            position = 0;
+            skipping = false;
+            return;
+        }
+        if (skipping) {
+            return;
+        }
+        if (position < marker.length && marker[position] != b) {
+            skip();
+            return;
+        }
+        if (line.size() >= MAX_LINE_LENGTH) {
+            overflows++;
+            skip();
+            return;
+        }
+        line.write(b);
+        position++;
+    }
+
+    private void skip() {
+        line.reset();
+        skipping = true;
+    }
+}
@@ -20,8 +20,6 @@ public class RetzPlugin implements Plugin {
 
     public static class RetzOperatorProvider implements OperatorProvider {
 
-        @Inject
-        CommandExecutor exec;
         @Inject
         CommandLogger cLog;
         @Inject
@@ -30,7 +28,7 @@ public class RetzPlugin implements Plugin {
         @Override
         public List<OperatorFactory> get() {
             return Arrays.asList(
-                    new RetzRunOperatorFactory(exec, cLog, systemConfig)
+                    new RetzRunOperatorFactory(cLog, systemConfig)
             );
         }
     }
@@ -0,0 +1,61 @@
+package io.github.retz.digdag.plugin;
+
+import com.google.common.base.Optional;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+class RetzPollingPolicy {
+
+    enum Tier {
+        HIGH, NORMAL, LOW
+    }
+
+    private final Tier tier;
+    private final Map<Tier, Integer> minIntervals = new EnumMap<>(Tier.class);
+    private final Map<Tier, Integer> maxIntervals = new EnumMap<>(Tier.class);
+    private final long deadlineWindowMillis;
+
+    RetzPollingPolicy(RetzOperatorConfig config) {
+        for (Tier t : Tier.values()) {
+            int min = config.getMinPollInterval(t);
+            int max = config.getMaxPollInterval(t);
+            minIntervals.put(t, Math.max(1, min));
+            maxIntervals.put(t, Math.max(Math.max(1, min), max));
+        }
+        this.tier = tierOf(config.getJobSpec().getPriority(),
+                config.getHighPriorityThreshold(), config.getLowPriorityThreshold());
+        this.deadlineWindowMillis = config.getDeadlinePollWindow() * 1000L;
+    }
+
+    Tier getTier() {
+        return tier;
+    }
+
+    /*
+     * Polling interval grows exponentially from the tier's min to the tier's max.
+     * `iteration` is reset by the operator whenever new output arrives, so jobs
+     * producing output are polled at the min interval.
+     * Jobs close to their timeout deadline are polled with the HIGH tier bounds.
+     */
+    int nextInterval(int iteration, Optional<Long> remainingMillis) {
+        Tier effective = tier;
+        if (remainingMillis.isPresent() && remainingMillis.get() <= deadlineWindowMillis) {
+            effective = Tier.HIGH;
+        }
+        int min = minIntervals.get(effective);
+        int max = maxIntervals.get(effective);
+        return Math.min(Math.max(min, (int) Math.pow(2, iteration)), max);
+    }
+
+    private static Tier tierOf(int priority, int highThreshold, int lowThreshold) {
+        // Retz priority follows nice(1): the smaller value, the higher priority
+        if (priority <= highThreshold) {
+            return Tier.HIGH;
+        } else if (priority >= lowThreshold) {
+            return Tier.LOW;
+        } else {
+            return Tier.NORMAL;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package io.github.retz.digdag.plugin;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/*
+ * Limits the number of Retz jobs running concurrently per quota key (appname or tag).
+ * The counts are held in a static field, so they are shared by the tasks which load this class
+ * through the same plugin class loader of digdag, not by the whole JVM.
+ *
+ * Tasks waiting for a quota are queued in FIFO order per key, and a task is admitted only when
+ * the permits of the running tasks and of the tasks queued before it leave room for its own permits
+ * in every key. Digdag never blocks in an operator, so tasks call acquire() on each polling.
+ *
+ * A task holding or waiting for a quota must call acquire() or renew() within the lease timeout,
+ * otherwise its lease expires, e.g. when the task has been lost with a digdag server.
+ */
+final class RetzQuotaManager {
+
+    private static final RetzQuotaManager INSTANCE = new RetzQuotaManager(System::currentTimeMillis);
+
+    static final class Admission {
+        private final boolean granted;
+        private final int position;
+        private final int queueLength;
+
+        private Admission(boolean granted, int position, int queueLength) {
+            this.granted = granted;
+            this.position = position;
+            this.queueLength = queueLength;
+        }
+
+        boolean isGranted() {
+            return granted;
+        }
+
+        /*
+         * 1-based position in the longest queue the task is waiting in, or 0 if granted
+         */
+        int getPosition() {
+            return position;
+        }
+
+        int getQueueLength() {
+            return queueLength;
+        }
+    }
+
+    private static class Lease {
+        private final int permits;
+        // taken by acquireExtra()
+        private int extra;
+        private long expiresAt;
+
+        Lease(int permits, long expiresAt) {
+            this.permits = permits;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class Pool {
+        private final Map<Long, Lease> holders = new HashMap<>();
+        // in arrival order
+        private final LinkedHashMap<Long, Lease> waiters = new LinkedHashMap<>();
+
+        void expire(long now) {
+            holders.values().removeIf(lease -> lease.expiresAt <= now);
+            waiters.values().removeIf(lease -> lease.expiresAt <= now);
+        }
+
+        int usedPermits() {
+            return holders.values().stream().mapToInt(lease -> lease.permits + lease.extra).sum();
+        }
+    }
+
+    // guarded by this
+    private final Map<String, Pool> pools = new HashMap<>();
+
+    private final LongSupplier clock;
+
+    RetzQuotaManager(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    static RetzQuotaManager getInstance() {
+        return INSTANCE;
+    }
+
+    /*
+     * `limits` maps quota keys to the max number of permits.
+     * A task asking more permits than the limit of a key takes the whole limit of the key.
+     */
+    synchronized Admission acquire(long taskId, Map<String, Integer> limits, int permits, long leaseMillis) {
+        long now = clock.getAsLong();
+        boolean admissible = true;
+        int position = 0;
+        int queueLength = 0;
+        for (Map.Entry<String, Integer> limit : limits.entrySet()) {
+            Pool pool = getPool(limit.getKey(), now);
+            int need = Math.min(permits, limit.getValue());
+            Lease held = pool.holders.get(taskId);
+            if (held != null) {
+                held.expiresAt = now + leaseMillis;
+                continue;
+            }
+            Lease waiting = pool.waiters.get(taskId);
+            if (waiting == null) {
+                pool.waiters.put(taskId, new Lease(need, now + leaseMillis));
+            } else {
+                waiting.expiresAt = now + leaseMillis;
+            }
+
+            int ahead = 0;
+            int index = 0;
+            for (Map.Entry<Long, Lease> waiter : pool.waiters.entrySet()) {
+                if (waiter.getKey() == taskId) {
+                    break;
+                }
+                ahead += waiter.getValue().permits;
+                index++;
+            }
+            if (pool.usedPermits() + ahead + need > limit.getValue()) {
+                admissible = false;
+            }
+            position = Math.max(position, index + 1);
+            queueLength = Math.max(queueLength, pool.waiters.size());
+        }
+
+        if (!admissible) {
+            return new Admission(false, position, queueLength);
+        }
+        for (Map.Entry<String, Integer> limit : limits.entrySet()) {
+            Pool pool = pools.get(limit.getKey());
+            Lease waiting = pool.waiters.remove(taskId);
+            if (waiting != null) {
+                pool.holders.put(taskId, waiting);
+            }
+        }
+        return new Admission(true, 0, queueLength);
+    }
+
+    /*
+     * Extends the lease of a running task. The task is counted again if this JVM has lost it,
+     * e.g. after a restart of digdag server, even if it exceeds the limit.
+     */
+    synchronized void renew(long taskId, Map<String, Integer> limits, int permits, long leaseMillis) {
+        long now = clock.getAsLong();
+        for (Map.Entry<String, Integer> limit : limits.entrySet()) {
+            Pool pool = getPool(limit.getKey(), now);
+            pool.waiters.remove(taskId);
+            Lease held = pool.holders.get(taskId);
+            if (held == null) {
+                pool.holders.put(taskId, new Lease(Math.min(permits, limit.getValue()), now + leaseMillis));
+            } else {
+                held.expiresAt = now + leaseMillis;
+            }
+        }
+    }
+
+    /*
+     * Takes `permits` more for a task holding its quota, e.g. for a backup copy of its job.
+     * Granted only if no task is waiting for any of the keys, and the limits leave room.
+     */
+    synchronized boolean acquireExtra(long taskId, Map<String, Integer> limits, int permits, long leaseMillis) {
+        long now = clock.getAsLong();
+        for (Map.Entry<String, Integer> limit : limits.entrySet()) {
+            Pool pool = getPool(limit.getKey(), now);
+            if (!pool.holders.containsKey(taskId) || !pool.waiters.isEmpty()
+                    || pool.usedPermits() + permits > limit.getValue()) {
+                return false;
+            }
+        }
+        for (Map.Entry<String, Integer> limit : limits.entrySet()) {
+            Lease held = pools.get(limit.getKey()).holders.get(taskId);
+            held.extra += permits;
+            held.expiresAt = now + leaseMillis;
+        }
+        return true;
+    }
+
+    synchronized void releaseExtra(long taskId, int permits) {
+        for (Pool pool : pools.values()) {
+            Lease held = pool.holders.get(taskId);
+            if (held != null) {
+                held.extra = Math.max(0, held.extra - permits);
+            }
+        }
+    }
+
+    synchronized void release(long taskId) {
+        Iterator<Pool> it = pools.values().iterator();
+        while (it.hasNext()) {
+            Pool pool = it.next();
+            pool.holders.remove(taskId);
+            pool.waiters.remove(taskId);
+            if (pool.holders.isEmpty() && pool.waiters.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    private Pool getPool(String key, long now) {
+        Pool pool = pools.computeIfAbsent(key, k -> new Pool());
+        pool.expire(now);
+        return pool;
+    }
+}
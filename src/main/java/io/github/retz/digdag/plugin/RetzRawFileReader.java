@@ -0,0 +1,225 @@
+package io.github.retz.digdag.plugin;
+
+import com.google.common.base.Optional;
+import io.github.retz.auth.Authenticator;
+import io.github.retz.cli.TimestampHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * Reads a job file as raw bytes from `/job/<id>/download` of Retz server, asking for
+ * only the bytes after `offset` by HTTP Range, and streams it to the log sink.
+ * This avoids the JSON encoding of the getFile API, which inflates the transfer and breaks binary output.
+ *
+ * Gzip encoding is asked for only when the whole file is read: a range of a gzip-encoded response
+ * counts bytes of the compressed stream (RFC 7233), which cannot be decoded from the middle.
+ *
+ * Requests are signed and verified in the same way as the Retz client.
+ *
+ * Servers which answer that they cannot serve a range of the file are remembered in this JVM,
+ * and the getFile API is used for them afterwards. Other failures fall back to the getFile API only once.
+ */
+class RetzRawFileReader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RetzRawFileReader.class);
+
+    private static final Set<URI> UNSUPPORTED_SERVERS = ConcurrentHashMap.newKeySet();
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-.*");
+
+    private static final int CONNECT_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(10);
+    private static final int READ_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(60);
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private static final String AUTHORIZATION = "Authorization";
+
+    private final URI server;
+    private final Optional<Authenticator> authenticator;
+    private final boolean checkCert;
+
+    RetzRawFileReader(URI server, Optional<Authenticator> authenticator, boolean checkCert) {
+        this.server = server;
+        this.authenticator = authenticator;
+        this.checkCert = checkCert;
+    }
+
+    boolean isSupported() {
+        return !UNSUPPORTED_SERVERS.contains(server);
+    }
+
+    void markUnsupported() {
+        if (UNSUPPORTED_SERVERS.add(server)) {
+            LOGGER.info("Retz server {} does not serve raw job files, falls back to getFile API", server);
+        }
+    }
+
+    /*
+     * Returns the number of bytes written to `out`, or absent if the server did not serve the file.
+     * Nothing is written to `out` when absent is returned.
+     */
+    Optional<Long> read(int jobId, String filename, long offset, OutputStream out) throws IOException {
+        URL url = getDownloadUrl(jobId, filename);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        try {
+            conn.setConnectTimeout(CONNECT_TIMEOUT);
+            conn.setReadTimeout(READ_TIMEOUT);
+            if (offset > 0) {
+                conn.setRequestProperty("Accept-Encoding", "identity");
+                conn.setRequestProperty("Range", String.format("bytes=%d-", offset));
+            } else {
+                conn.setRequestProperty("Accept-Encoding", "gzip");
+            }
+            if (authenticator.isPresent()) {
+                String date = TimestampHelper.now();
+                conn.setRequestProperty("Date", date);
+                conn.setRequestProperty(AUTHORIZATION,
+                        authenticator.get().buildHeaderValue("GET", "", date, url.getPath()));
+            }
+            if (!checkCert && conn instanceof HttpsURLConnection) {
+                HttpsURLConnection https = (HttpsURLConnection) conn;
+                https.setSSLSocketFactory(InsecureHolder.SOCKET_FACTORY);
+                https.setHostnameVerifier((hostname, session) -> true);
+            }
+
+            int status;
+            try {
+                status = conn.getResponseCode();
+            } catch (IOException ex) {
+                LOGGER.debug("Failed to download {} of Job(id={}) from {}", filename, jobId, server, ex);
+                return Optional.absent();
+            }
+            switch (status) {
+                case HttpURLConnection.HTTP_OK:
+                    if (offset > 0) {
+                        // Range is ignored, so the whole file would be downloaded on every polling
+                        markUnsupported();
+                        return Optional.absent();
+                    }
+                    break;
+                case HttpURLConnection.HTTP_PARTIAL:
+                    if (!startsAt(conn.getHeaderField("Content-Range"), offset)) {
+                        markUnsupported();
+                        return Optional.absent();
+                    }
+                    break;
+                case 416: // Range Not Satisfiable: no bytes after offset yet
+                    return Optional.of(0L);
+                case HttpURLConnection.HTTP_BAD_REQUEST:
+                case HttpURLConnection.HTTP_BAD_METHOD:
+                case HttpURLConnection.HTTP_NOT_IMPLEMENTED:
+                    markUnsupported();
+                    return Optional.absent();
+                default:
+                    // e.g. 404 before the file is created, which the getFile API handles
+                    LOGGER.debug("Failed to download {} of Job(id={}) from {}: {}", filename, jobId, server, status);
+                    return Optional.absent();
+            }
+
+            InputStream in = new BufferedInputStream(conn.getInputStream(), BUFFER_SIZE);
+            if ("gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+                if (offset > 0) {
+                    // encoded though identity is asked for, so the range does not count bytes of the file
+                    markUnsupported();
+                    return Optional.absent();
+                }
+                try {
+                    in = new GZIPInputStream(in, BUFFER_SIZE);
+                } catch (IOException ex) {
+                    // not to download the broken encoding again on every polling
+                    LOGGER.debug("Failed to decode {} of Job(id={}) from {}", filename, jobId, server, ex);
+                    markUnsupported();
+                    return Optional.absent();
+                }
+            }
+            return Optional.of(copy(in, out, jobId, filename));
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private long copy(InputStream in, OutputStream out, int jobId, String filename) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        try (InputStream input = in) {
+            int n;
+            while ((n = input.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+                total += n;
+            }
+        } catch (IOException ex) {
+            // bytes written so far are kept, the rest is read in the next polling
+            LOGGER.warn("Download of {} of Job(id={}) interrupted after {} byte(s)", filename, jobId, total, ex);
+        }
+        LOGGER.debug("Downloaded {} of Job(id={}): {} byte(s)", filename, jobId, total);
+        return total;
+    }
+
+    private URL getDownloadUrl(int jobId, String filename) throws IOException {
+        String base = server.toString().replaceAll("/+$", "");
+        return new URL(String.format("%s/job/%d/download?path=%s",
+                base, jobId, URLEncoder.encode(filename, "UTF-8")));
+    }
+
+    /*
+     * Trusts any certificate, as the Retz client does when it is configured as insecure.
+     * Created on first use so that TLS classes are not loaded unless needed.
+     */
+    private static class InsecureHolder {
+        private static final SSLSocketFactory SOCKET_FACTORY = createSocketFactory();
+
+        private static SSLSocketFactory createSocketFactory() {
+            TrustManager trustAll = new X509TrustManager() {
+                @Override
+                public void checkClientTrusted(X509Certificate[] chain, String authType) {
+                }
+
+                @Override
+                public void checkServerTrusted(X509Certificate[] chain, String authType) {
+                }
+
+                @Override
+                public X509Certificate[] getAcceptedIssuers() {
+                    return new X509Certificate[0];
+                }
+            };
+            try {
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, new TrustManager[] {trustAll}, null);
+                return context.getSocketFactory();
+            } catch (GeneralSecurityException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
+    private static boolean startsAt(String contentRange, long offset) {
+        if (contentRange == null) {
+            return false;
+        }
+        Matcher matcher = CONTENT_RANGE.matcher(contentRange.trim());
+        return matcher.matches() && Long.parseLong(matcher.group(1)) == offset;
+    }
+}
@@ -2,12 +2,17 @@ package io.github.retz.digdag.plugin;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.BaseEncoding;
 import io.digdag.client.config.Config;
 import io.digdag.client.config.ConfigElement;
 import io.digdag.client.config.ConfigException;
 import io.digdag.spi.CommandLogger;
 import io.digdag.spi.OperatorContext;
 import io.digdag.spi.TaskExecutionException;
+import io.digdag.spi.TaskRequest;
 import io.digdag.spi.TaskResult;
 import io.digdag.util.BaseOperator;
 import io.digdag.util.Durations;
@@ -15,8 +20,10 @@ import io.github.retz.cli.ClientCLIConfig;
 import io.github.retz.cli.TimestampHelper;
 import io.github.retz.protocol.GetFileResponse;
 import io.github.retz.protocol.GetJobResponse;
+import io.github.retz.protocol.ListJobResponse;
 import io.github.retz.protocol.Response;
 import io.github.retz.protocol.ScheduleResponse;
+import io.github.retz.protocol.StatusResponse;
 import io.github.retz.protocol.data.Job;
 import io.github.retz.protocol.exception.JobNotFoundException;
 import io.github.retz.web.Client;
@@ -31,10 +38,17 @@ import java.net.URISyntaxException;
 import java.text.SimpleDateFormat;
 import java.text.ParseException;
 import java.time.Duration;
-import java.util.Calendar;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
@@ -44,20 +58,65 @@ public class RetzRunApiOperator extends BaseOperator {
 
     private final CommandLogger clog;
     private final RetzOperatorConfig config;
+    private final RetzJobSpec spec;
+    private final RetzPollingPolicy pollingPolicy;
+    private final RetzServerRouter router;
+
+    // server of the job polled in this polling, set by runTask()
+    private Optional<URI> jobServer = Optional.absent();
 
     RetzRunApiOperator(OperatorContext context, RetzOperatorConfig config, CommandLogger clog) {
         super(context);
         this.config = config;
+        this.spec = config.getJobSpec();
         this.clog = clog;
+        this.pollingPolicy = new RetzPollingPolicy(config);
+        this.router = new RetzServerRouter(config);
     }
 
     private static final String STATE_JOB_ID = "jobId";
+    private static final String STATE_SERVER_URI = "serverUri";
     private static final String STATE_JOB_STATE = "jobState";
     private static final String STATE_POLL_ITERATION = "pollIteration";
     private static final String STATE_OFFSET = "offset";
     private static final String STATE_RESULT_CODE = "result";
     private static final String STATE_DURATION = "duration";
     private static final String STATE_REASON = "reason";
+    private static final String STATE_DEADLINE = "deadline";
+    private static final String STATE_LOG_DROPPED_LINES = "logDroppedLines";
+    private static final String STATE_LOG_DROPPED_BYTES = "logDroppedBytes";
+    private static final String STATE_LOG_FILTER = "logFilter";
+    private static final String STATE_LOG_FILTER_PENDING = "pending";
+    private static final String STATE_LOG_FILTER_LAST_SHAPE_HASH = "lastShapeHash";
+    private static final String STATE_LOG_FILTER_REPEATS = "repeats";
+    private static final String STATE_STDOUT_BYTES = "stdoutBytes";
+    private static final String STATE_STDERR_BYTES = "stderrBytes";
+    private static final String STATE_OUTPUT = "output";
+    private static final String STATE_OUTPUT_PENDING = "outputPending";
+    private static final String STATE_OUTPUT_SKIPPING = "outputSkipping";
+    private static final String STATE_SHARDS = "shards";
+    private static final String STATE_FAILED_SHARD = "failedShard";
+    private static final String STATE_JOB_IDS = "jobIds";
+    private static final String STATE_BACKUP_JOB_ID = "backupJobId";
+    private static final String STATE_SPECULATED = "speculated";
+    private static final String STATE_MEDIAN_DURATION = "medianDuration";
+    private static final String STATE_TIMELINE = "timeline";
+    private static final String STATE_TASK_STARTED = "taskStarted";
+    private static final String STATE_QUOTA_WAIT_STARTED = "quotaWaitStarted";
+    private static final String STATE_QUOTA_ADMITTED = "quotaAdmitted";
+    private static final String STATE_QUOTA_POSITION = "quotaPosition";
+    private static final String STATE_QUOTA_ITERATION = "quotaIteration";
+
+    private static final String STATE_INFRA_RETRIES = "infraRetries";
+
+    // state of the polled job, cleared on resubmission
+    private static final List<String> JOB_STATE_KEYS = ImmutableList.of(
+            STATE_JOB_ID, STATE_JOB_STATE, STATE_RESULT_CODE, STATE_DURATION, STATE_REASON,
+            STATE_STDOUT_BYTES, STATE_STDERR_BYTES, STATE_OUTPUT, STATE_OUTPUT_PENDING, STATE_OUTPUT_SKIPPING, STATE_LOG_FILTER,
+            STATE_BACKUP_JOB_ID, STATE_SPECULATED, STATE_MEDIAN_DURATION, STATE_TIMELINE);
+
+    private static final String ENV_SHARD_INDEX = "SHARD_INDEX";
+    private static final String ENV_SHARD_COUNT = "SHARD_COUNT";
 
     private static final int MAX_FETCH_FILE_LENGTH = 65536;
 
@@ -69,29 +128,284 @@ public class RetzRunApiOperator extends BaseOperator {
 
         Optional<Integer> maybeEcode = state.getOptional(STATE_RESULT_CODE, Integer.class);
         if (!maybeEcode.isPresent()) {
-            try (Client webClient = createClient()) {
-                Optional<Integer> maybeJobId = state.getOptional(STATE_JOB_ID, Integer.class);
+            if (!state.has(STATE_TASK_STARTED)) {
+                state.set(STATE_TASK_STARTED, System.currentTimeMillis());
+            }
+            Optional<TaskExecutionException> quotaWait = processQuota(state);
+            if (quotaWait.isPresent()) {
+                throw quotaWait.get();
+            }
+            TaskExecutionException nextPolling;
+            try {
+                // includes creating the client, which may fail e.g. when no server is available
+                nextPolling = processJobs(state);
+            } catch (RuntimeException ex) {
+                RetzQuotaManager.getInstance().release(request.getTaskId());
+                throw ex;
+            }
+            LOGGER.debug("next polling: {}", state);
+
+            throw nextPolling;
+        } else {
+            taskResult = processFinish(maybeEcode.get(), state);
+        }
+        return taskResult;
+    }
+
+    private TaskExecutionException processJobs(Config state) {
+        Set<URI> failedServers = new HashSet<>();
+        while (true) {
+            boolean serverSelected = !state.has(STATE_SERVER_URI);
+            try (Client webClient = createClient(state, failedServers)) {
+                jobServer = getJobServer(state);
+                if (spec.getShards() > 1) {
+                    return processShards(webClient, state);
+                } else {
+                    return processJob(webClient, state);
+                }
+            } catch (ScheduleFailedException ex) {
+                if (!serverSelected || !state.has(STATE_SERVER_URI) || hasScheduledJob(state)) {
+                    throw ex;
+                }
+                String serverUri = state.get(STATE_SERVER_URI, String.class);
+                LOGGER.warn("Failed to schedule Retz job on {}, trying another server", serverUri, ex);
+                failedServers.add(RetzServerRouter.toUri(serverUri));
+                state.remove(STATE_SERVER_URI);
+                state.remove(STATE_SHARDS);
+            }
+        }
+    }
+
+    /*
+     * Thrown when a job could not be scheduled, so that a new submission can fail over to another server
+     */
+    private static class ScheduleFailedException extends TaskExecutionException {
+        ScheduleFailedException(String message) {
+            super(message);
+        }
+
+        ScheduleFailedException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private static boolean hasScheduledJob(Config state) {
+        if (state.has(STATE_JOB_ID)) {
+            return true;
+        }
+        Config shards = state.getNestedOrGetEmpty(STATE_SHARDS);
+        for (String key : shards.getKeys()) {
+            if (shards.getNested(key).has(STATE_JOB_ID)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private TaskExecutionException processJob(Client webClient, Config state) {
+        Optional<Integer> maybeJobId = state.getOptional(STATE_JOB_ID, Integer.class);
+        Job job;
+        if (!maybeJobId.isPresent()) {
+            job = processSchedule(webClient, state, Optional.absent());
+        } else {
+            job = speculate(webClient, getJob(maybeJobId.get(), webClient), state, Optional.absent());
+        }
+        recordTimeline(job, state);
+        state.set(STATE_JOB_STATE, job.state().toString());
+        LOGGER.debug("job: {}", job);
+
+        if (processGetFile(job, webClient, state) && !resubmitOnInfraFailure(webClient, job, state, Optional.absent())) {
+            RetzQuotaManager.getInstance().release(request.getTaskId());
+            return TaskExecutionException.ofNextPolling(0, ConfigElement.copyOf(state));
+        }
+        return TaskExecutionException.ofNextPolling(nextPollingInterval(state), ConfigElement.copyOf(state));
+    }
+
+    /*
+     * Each shard is polled with its own state in `shards.<index>`.
+     * When a shard fails, or an error occurs, the other shards are killed.
+     */
+    private TaskExecutionException processShards(Client webClient, Config state) {
+        int shardCount = spec.getShards();
+        Config shards = state.getNestedOrSetEmpty(STATE_SHARDS);
+        try {
+            boolean finished = true;
+            int interval = Integer.MAX_VALUE;
+            for (int i = 0; i < shardCount; i++) {
+                Config shard = shards.getNestedOrSetEmpty(String.valueOf(i));
+                if (shard.has(STATE_RESULT_CODE)) {
+                    continue;
+                }
+
+                Optional<Integer> maybeJobId = shard.getOptional(STATE_JOB_ID, Integer.class);
                 Job job;
                 if (!maybeJobId.isPresent()) {
-                    job = processSchedule(webClient, state);
+                    job = processSchedule(webClient, shard, Optional.of(i));
                 } else {
-                    job = getJob(maybeJobId.get(), webClient);
+                    job = speculate(webClient, getJob(maybeJobId.get(), webClient), shard, Optional.of(i));
+                }
+                recordTimeline(job, shard);
+                shard.set(STATE_JOB_STATE, job.state().toString());
+                LOGGER.debug("shard {} job: {}", i, job);
+
+                if (!processGetFile(job, webClient, shard) || resubmitOnInfraFailure(webClient, job, shard, Optional.of(i))) {
+                    finished = false;
+                    interval = Math.min(interval, nextPollingInterval(shard));
+                } else if (shard.get(STATE_RESULT_CODE, Integer.class) != 0 && !state.has(STATE_FAILED_SHARD)) {
+                    LOGGER.info("Shard {} Job(id={}) failed, killing other shards", i, job.id());
+                    state.set(STATE_FAILED_SHARD, i);
+                    killShards(webClient, shards, shardCount);
+                }
+            }
+            if (!finished) {
+                return TaskExecutionException.ofNextPolling(interval, ConfigElement.copyOf(state));
+            }
+        } catch (RuntimeException ex) {
+            killShards(webClient, shards, shardCount);
+            throw ex;
+        }
+
+        finishShards(state, shards, shardCount);
+        RetzQuotaManager.getInstance().release(request.getTaskId());
+        return TaskExecutionException.ofNextPolling(0, ConfigElement.copyOf(state));
+    }
+
+    private void killShards(Client webClient, Config shards, int shardCount) {
+        for (int i = 0; i < shardCount; i++) {
+            Config shard = shards.getNestedOrGetEmpty(String.valueOf(i));
+            if (shard.has(STATE_RESULT_CODE)) {
+                continue;
+            }
+            Optional<Integer> maybeJobId = shard.getOptional(STATE_JOB_ID, Integer.class);
+            if (maybeJobId.isPresent()) {
+                killJob(webClient, maybeJobId.get());
+            }
+            Optional<Integer> maybeBackupJobId = shard.getOptional(STATE_BACKUP_JOB_ID, Integer.class);
+            if (maybeBackupJobId.isPresent()) {
+                killJob(webClient, maybeBackupJobId.get());
+            }
+        }
+    }
+
+    private void finishShards(Config state, Config shards, int shardCount) {
+        ImmutableList.Builder<Integer> jobIds = ImmutableList.builder();
+        long stdoutBytes = 0L;
+        long stderrBytes = 0L;
+        long duration = -1L;
+        for (int i = 0; i < shardCount; i++) {
+            Config shard = shards.getNested(String.valueOf(i));
+            jobIds.add(shard.get(STATE_JOB_ID, Integer.class));
+            stdoutBytes += shard.get(STATE_STDOUT_BYTES, Long.class, 0L);
+            stderrBytes += shard.get(STATE_STDERR_BYTES, Long.class, 0L);
+            Long runMillis = getTimeline(shard).summarize().get(RetzTimeline.RUN_MS);
+            if (runMillis != null) {
+                duration = Math.max(duration, runMillis);
+            }
+            if (shard.has(STATE_OUTPUT)) {
+                // merged in shard order, so a later shard wins on the same key
+                Config output = state.getNestedOrSetEmpty(STATE_OUTPUT);
+                Config shardOutput = shard.getNested(STATE_OUTPUT);
+                for (String key : shardOutput.getKeys()) {
+                    if (output.has(key)) {
+                        LOGGER.warn("Output '{}' of shard {} overwrites the one of a former shard", key, i);
+                    }
                 }
-                state.set(STATE_JOB_STATE, job.state().toString());
-                LOGGER.debug("job: {}", job);
+                output.merge(shardOutput);
+            }
+        }
+
+        // report the first failed shard, or the first shard if all shards succeeded
+        Config reported = shards.getNested(String.valueOf(state.get(STATE_FAILED_SHARD, Integer.class, 0)));
+        state.set(STATE_JOB_ID, reported.get(STATE_JOB_ID, Integer.class));
+        state.set(STATE_JOB_STATE, reported.get(STATE_JOB_STATE, String.class));
+        state.setOptional(STATE_REASON, reported.getOptional(STATE_REASON, String.class));
+        state.set(STATE_JOB_IDS, jobIds.build());
+        state.set(STATE_STDOUT_BYTES, stdoutBytes);
+        state.set(STATE_STDERR_BYTES, stderrBytes);
+        // shards run in parallel, so the longest one is the duration of the task
+        state.set(STATE_DURATION, formatDuration(duration));
+        state.set(STATE_RESULT_CODE, reported.get(STATE_RESULT_CODE, Integer.class));
+    }
+
+    /**
+     * Kills the Retz job when the digdag task is killed.
+     */
+    @Override
+    public void cleanup(TaskRequest request) {
+        RetzQuotaManager.getInstance().release(request.getTaskId());
+        Config state = request.getLastStateParams();
+        if (state.has(STATE_RESULT_CODE)) {
+            return;
+        }
 
-                TaskExecutionException nextPolling = processGetFile(job, webClient, state);
-                LOGGER.debug("next polling: {}", state);
+        List<Integer> jobIds = new ArrayList<>();
+        jobIds.addAll(state.getOptional(STATE_JOB_ID, Integer.class).asSet());
+        jobIds.addAll(state.getOptional(STATE_BACKUP_JOB_ID, Integer.class).asSet());
+        Config shards = state.getNestedOrGetEmpty(STATE_SHARDS);
+        for (String key : shards.getKeys()) {
+            Config shard = shards.getNested(key);
+            if (!shard.has(STATE_RESULT_CODE)) {
+                jobIds.addAll(shard.getOptional(STATE_JOB_ID, Integer.class).asSet());
+                jobIds.addAll(shard.getOptional(STATE_BACKUP_JOB_ID, Integer.class).asSet());
+            }
+        }
+        if (!jobIds.isEmpty()) {
+            try (Client webClient = createClient(state)) {
+                for (int jobId : jobIds) {
+                    killJob(webClient, jobId);
+                }
+            }
+        }
 
-                throw nextPolling;
+        List<URI> servers = router.getServers();
+        if (servers.isEmpty()) {
+            try (Client webClient = createClient(state)) {
+                killOrphanJobs(webClient, spec.getTaskTag(), jobIds);
             }
         } else {
-            taskResult = processFinish(maybeEcode.get(), state);
+            for (URI serverUri : servers) {
+                try (Client webClient = createClient(serverUri)) {
+                    killOrphanJobs(webClient, spec.getTaskTag(), jobIds);
+                }
+            }
+        }
+    }
+
+    private void killOrphanJobs(Client webClient, String tag, List<Integer> knownJobIds) {
+        for (Job.JobState jobState : RetzClientHolder.ORPHAN_JOB_STATES) {
+            Response res;
+            try {
+                res = webClient.list(jobState, java.util.Optional.of(tag));
+            } catch (IOException ex) {
+                LOGGER.warn("Failed to list {} jobs tagged with '{}'", jobState, tag, ex);
+                continue;
+            }
+            if (!(res instanceof ListJobResponse)) {
+                LOGGER.warn("Failed to list {} jobs tagged with '{}': {}", jobState, tag, res.status());
+                continue;
+            }
+            for (Job job : ((ListJobResponse) res).jobs()) {
+                if (!knownJobIds.contains(job.id())) {
+                    LOGGER.info("Job(id={}) is orphaned from task '{}'", job.id(), request.getTaskName());
+                    killJob(webClient, job.id());
+                }
+            }
+        }
+    }
+
+    private void killJob(Client webClient, int jobId) {
+        try {
+            Response res = webClient.kill(jobId);
+            LOGGER.info("Job(id={}) has been killed: {}", jobId, res.status());
+        } catch (IOException ex) {
+            LOGGER.warn("Job(id={}) failed to kill", jobId, ex);
         }
-        return taskResult;
     }
 
     private TaskResult processFinish(int result, Config state) {
+        // the job may have finished before this JVM restarted
+        RetzQuotaManager.getInstance().release(request.getTaskId());
+        Map<String, Object> timeline = exportTimeline(result, state);
         if (result != 0) {
             throw new TaskExecutionException(String.format(
                     "retz_run: Job(id=%s) failed. " +
@@ -103,80 +417,469 @@ public class RetzRunApiOperator extends BaseOperator {
         }
 
         TaskResult taskResult = TaskResult.empty(request);
-        taskResult.getStoreParams()
-                .getNestedOrSetEmpty(RetzOperatorConfig.KEY_CONFIG_ROOT)
-                .set("last_job_id", state.get(STATE_JOB_ID, String.class));
+        Config storeParams = taskResult.getStoreParams()
+                .getNestedOrSetEmpty(RetzOperatorConfig.KEY_CONFIG_ROOT);
+        storeParams.set("last_job_id", state.get(STATE_JOB_ID, String.class));
+        if (state.has(STATE_JOB_IDS)) {
+            storeParams.set("last_job_ids", state.getList(STATE_JOB_IDS, Integer.class));
+        }
+        storeParams.setOptional("last_job_state", state.getOptional(STATE_JOB_STATE, String.class));
+        storeParams.setOptional("last_job_duration", state.getOptional(STATE_DURATION, String.class));
+        storeParams.setOptional("last_job_stdout_bytes", state.getOptional(STATE_STDOUT_BYTES, Long.class));
+        storeParams.setOptional("last_job_stderr_bytes", state.getOptional(STATE_STDERR_BYTES, Long.class));
+        if (state.has(STATE_OUTPUT)) {
+            storeParams.setNested("output", state.getNested(STATE_OUTPUT));
+        }
+        storeParams.set("timeline", timeline);
+        storeParams.setOptional("quota_wait_ms", getQuotaWait(state));
 
         return taskResult;
     }
 
-    private Job processSchedule(Client webClient, Config state) {
-        Job job = createJob();
+    /*
+     * Waits in the in-JVM queue of `retz.quota.*` until the job can be scheduled within the quotas.
+     * Returns the next polling while waiting.
+     */
+    private Optional<TaskExecutionException> processQuota(Config state) {
+        Map<String, Integer> limits = config.getQuotaLimits();
+        if (limits.isEmpty()) {
+            return Optional.absent();
+        }
+        RetzQuotaManager quota = RetzQuotaManager.getInstance();
+        long leaseMillis = TimeUnit.SECONDS.toMillis(config.getQuotaLeaseTimeout());
+        if (state.has(STATE_QUOTA_ADMITTED) || state.has(STATE_JOB_ID) || state.has(STATE_SHARDS)) {
+            quota.renew(request.getTaskId(), limits, spec.getShards(), leaseMillis);
+            return Optional.absent();
+        }
+
+        long now = System.currentTimeMillis();
+        if (!state.has(STATE_QUOTA_WAIT_STARTED)) {
+            state.set(STATE_QUOTA_WAIT_STARTED, now);
+        }
+        long waited = now - state.get(STATE_QUOTA_WAIT_STARTED, Long.class);
+        RetzQuotaManager.Admission admission = quota.acquire(request.getTaskId(), limits, spec.getShards(), leaseMillis);
+        if (admission.isGranted()) {
+            LOGGER.info("Quota of {} acquired after waiting {}ms", limits.keySet(), waited);
+            state.set(STATE_QUOTA_ADMITTED, now);
+            state.remove(STATE_QUOTA_POSITION);
+            state.remove(STATE_QUOTA_ITERATION);
+            return Optional.absent();
+        }
+
+        LOGGER.info("Waiting for quota of {}: position {} of {} in queue, waited {}ms",
+                limits.keySet(), admission.getPosition(), admission.getQueueLength(), waited);
+        state.set(STATE_QUOTA_POSITION, admission.getPosition());
+        int iteration = state.get(STATE_QUOTA_ITERATION, Integer.class, 0);
+        state.set(STATE_QUOTA_ITERATION, iteration + 1);
+        int interval = pollingPolicy.nextInterval(iteration, Optional.absent());
+        return Optional.of(TaskExecutionException.ofNextPolling(interval, ConfigElement.copyOf(state)));
+    }
+
+    private static Optional<Long> getQuotaWait(Config state) {
+        Optional<Long> waitStarted = state.getOptional(STATE_QUOTA_WAIT_STARTED, Long.class);
+        Optional<Long> admitted = state.getOptional(STATE_QUOTA_ADMITTED, Long.class);
+        if (!waitStarted.isPresent() || !admitted.isPresent()) {
+            return Optional.absent();
+        }
+        return Optional.of(Math.max(0L, admitted.get() - waitStarted.get()));
+    }
+
+    private Job processSchedule(Client webClient, Config state, Optional<Integer> shardIndex) {
+        long requested = System.currentTimeMillis();
+        Job scheduled = scheduleJob(webClient, shardIndex);
+        initializeTaskState(scheduled, state);
+        getTimeline(state).mark(RetzTimeline.SCHEDULE_REQUESTED, requested);
+        return scheduled;
+    }
+
+    private static RetzTimeline getTimeline(Config state) {
+        return new RetzTimeline(state.getNestedOrSetEmpty(STATE_TIMELINE));
+    }
+
+    /*
+     * Timestamps are parsed only when their events are recorded first, not on every polling
+     */
+    private static void recordTimeline(Job job, Config state) {
+        RetzTimeline timeline = getTimeline(state);
+        if (job.scheduled() != null && !timeline.has(RetzTimeline.QUEUED)) {
+            timeline.mark(RetzTimeline.QUEUED, parseTimestamp(job.scheduled()));
+        }
+        if (job.state() == Job.JobState.STARTING) {
+            timeline.mark(RetzTimeline.STARTING, System.currentTimeMillis());
+        }
+        if (job.started() != null && !timeline.has(RetzTimeline.STARTED)) {
+            timeline.mark(RetzTimeline.STARTED, parseTimestamp(job.started()));
+        }
+        if (job.finished() != null && !timeline.has(RetzTimeline.FINISHED)) {
+            timeline.mark(RetzTimeline.FINISHED, parseTimestamp(job.finished()));
+        }
+    }
+
+    /*
+     * Exports spans of the task and its jobs, and returns the summary stored to `retz.timeline`.
+     * Spans of a task share the trace id derived from the attempt and the task.
+     */
+    private Map<String, Object> exportTimeline(int result, Config state) {
+        long completed = System.currentTimeMillis();
+        long taskStarted = state.get(STATE_TASK_STARTED, Long.class, completed);
+
+        List<RetzSpan> spans = new ArrayList<>();
+        spans.add(new RetzSpan(getTraceId(), getTaskSpanId(), Optional.absent(), "retz_run",
+                taskStarted, completed, result == 0, getSpanAttributes()));
+
+        Optional<Long> quotaWait = getQuotaWait(state);
+        if (quotaWait.isPresent()) {
+            long waitStarted = state.get(STATE_QUOTA_WAIT_STARTED, Long.class);
+            spans.add(new RetzSpan(getTraceId(), RetzSpan.newSpanId(getTaskSpanId() + ":retz.quota_wait"),
+                    Optional.of(getTaskSpanId()), "retz.quota_wait",
+                    waitStarted, waitStarted + quotaWait.get(), true, ImmutableMap.of()));
+        }
+
+        Map<String, Object> summary = new LinkedHashMap<>();
+        if (state.has(STATE_SHARDS)) {
+            Config shards = state.getNested(STATE_SHARDS);
+            List<Map<String, Long>> shardSummaries = new ArrayList<>();
+            for (int i = 0; i < spec.getShards(); i++) {
+                Config shard = shards.getNestedOrGetEmpty(String.valueOf(i));
+                spans.addAll(getJobSpans(shard, Optional.of(i)));
+                shardSummaries.add(getTimeline(shard).summarize());
+            }
+            summary.put("shards", shardSummaries);
+        } else {
+            spans.addAll(getJobSpans(state, Optional.absent()));
+            summary.putAll(getTimeline(state).summarize());
+        }
+        if (quotaWait.isPresent()) {
+            summary.put("quota_wait_ms", quotaWait.get());
+        }
+        summary.put("task_ms", Math.max(0L, completed - taskStarted));
+
+        exportSpans(spans);
+        return summary;
+    }
+
+    private List<RetzSpan> getJobSpans(Config state, Optional<Integer> shardIndex) {
+        Optional<Integer> maybeJobId = state.getOptional(STATE_JOB_ID, Integer.class);
+        if (!maybeJobId.isPresent()) {
+            return ImmutableList.of();
+        }
+        Map<String, Object> attributes = getSpanAttributes();
+        attributes.put("retz.job_id", maybeJobId.get());
+        attributes.put("retz.job_state", state.get(STATE_JOB_STATE, String.class, ""));
+        if (state.has(STATE_SERVER_URI)) {
+            attributes.put("retz.server", state.get(STATE_SERVER_URI, String.class));
+        }
+        if (shardIndex.isPresent()) {
+            attributes.put("retz.shard", shardIndex.get());
+        }
+        String jobSpanId = RetzSpan.newSpanId(String.format("%s:%s:%d",
+                getTraceId(), state.get(STATE_SERVER_URI, String.class, ""), maybeJobId.get()));
+        boolean ok = state.get(STATE_RESULT_CODE, Integer.class, -1) == 0;
+        return getTimeline(state).toSpans(getTraceId(), getTaskSpanId(), jobSpanId, ok, attributes);
+    }
+
+    private void exportSpans(List<RetzSpan> spans) {
+        try {
+            RetzSpanExporters.of(config).export(spans);
+        } catch (IOException | RuntimeException ex) {
+            // tracing must not fail the task
+            LOGGER.warn("Failed to export spans of task '{}'", request.getTaskName(), ex);
+        }
+    }
+
+    private String getTraceId() {
+        return RetzSpan.newTraceId(String.format("%d:%d", request.getAttemptId(), request.getTaskId()));
+    }
+
+    private String getTaskSpanId() {
+        return RetzSpan.newSpanId(getTraceId());
+    }
+
+    private Map<String, Object> getSpanAttributes() {
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        attributes.put("digdag.attempt_id", request.getAttemptId());
+        attributes.put("digdag.task_name", request.getTaskName());
+        attributes.put("retz.appname", spec.getAppName());
+        return attributes;
+    }
+
+    private Job scheduleJob(Client webClient, Optional<Integer> shardIndex) {
+        Job job = createJob(shardIndex);
         Response res;
         try {
             res = webClient.schedule(job);
         } catch (IOException ex) {
-            throw new RuntimeException("Failed to schedule Retz job", ex);
+            throw new ScheduleFailedException("Failed to schedule Retz job", ex);
         }
         if (!(res instanceof ScheduleResponse)) {
-            throw new TaskExecutionException(String.format(
+            throw new ScheduleFailedException(String.format(
                     "Failed to schedule Retz job: %s",
                     res.status()));
         }
 
         Job scheduled = ((ScheduleResponse) res).job();
-        LOGGER.info("Job(id={}) scheduled: {}", scheduled.id(), scheduled.state());
-
-        initializeTaskState(scheduled, state);
+        if (shardIndex.isPresent()) {
+            LOGGER.info("Shard {} Job(id={}) scheduled: {}", shardIndex.get(), scheduled.id(), scheduled.state());
+        } else {
+            LOGGER.info("Job(id={}) scheduled: {}", scheduled.id(), scheduled.state());
+        }
 
         return scheduled;
     }
 
+    /*
+     * Speculative execution: when the job runs longer than `multiplier` times the median duration of
+     * the past successful jobs with the same speculation tag, a backup copy of the job is scheduled.
+     * The copy finishing successfully first is taken, and the other one is killed.
+     * Returns the job to be polled.
+     */
+    private Job speculate(Client webClient, Job job, Config state, Optional<Integer> shardIndex) {
+        if (!spec.isSpeculative()) {
+            return job;
+        }
+
+        Optional<Integer> maybeBackupJobId = state.getOptional(STATE_BACKUP_JOB_ID, Integer.class);
+        if (maybeBackupJobId.isPresent()) {
+            Job backup = getJob(maybeBackupJobId.get(), webClient);
+            if (isSucceeded(job)) {
+                if (!isFinished(backup)) {
+                    killJob(webClient, backup.id());
+                }
+                removeBackup(state);
+            } else if (isFinished(job)) {
+                removeBackup(state);
+                if (!isFinished(backup) || isSucceeded(backup)) {
+                    LOGGER.info("Job(id={}) failed, output of Backup Job(id={}) follows", job.id(), backup.id());
+                    return followBackup(backup, state);
+                }
+            } else if (isFinished(backup)) {
+                removeBackup(state);
+                if (isSucceeded(backup)) {
+                    LOGGER.info("Backup Job(id={}) finished before Job(id={}), output of the backup follows",
+                            backup.id(), job.id());
+                    killJob(webClient, job.id());
+                    return followBackup(backup, state);
+                }
+                LOGGER.info("Backup Job(id={}) failed, keep polling Job(id={})", backup.id(), job.id());
+            }
+            return job;
+        }
+
+        if (job.state() != Job.JobState.STARTED || job.started() == null || state.has(STATE_SPECULATED)) {
+            return job;
+        }
+        if (!state.has(STATE_MEDIAN_DURATION)) {
+            state.set(STATE_MEDIAN_DURATION, getMedianDuration(webClient, spec.getSpeculativeMinHistory()));
+        }
+        long median = state.get(STATE_MEDIAN_DURATION, Long.class);
+        double multiplier = spec.getSpeculativeMultiplier();
+        recordTimeline(job, state);
+        long elapsed = System.currentTimeMillis() - getTimeline(state).get(RetzTimeline.STARTED).get();
+        if (median > 0 && elapsed > multiplier * median) {
+            // the backup is optional; retried on the next polling, which gets sparser as the job runs longer
+            if (!acquireBackupQuota()) {
+                LOGGER.info("Quota of {} is full, Backup Job for Job(id={}) is not scheduled",
+                        config.getQuotaLimits().keySet(), job.id());
+                return job;
+            }
+            Job backup;
+            try {
+                backup = scheduleJob(webClient, shardIndex);
+            } catch (ScheduleFailedException ex) {
+                LOGGER.warn("Failed to schedule Backup Job for Job(id={}), keep polling it", job.id(), ex);
+                RetzQuotaManager.getInstance().releaseExtra(request.getTaskId(), 1);
+                return job;
+            }
+            LOGGER.info("Job(id={}) is running for {}ms (median: {}ms), Backup Job(id={}) scheduled",
+                    job.id(), elapsed, median, backup.id());
+            state.set(STATE_BACKUP_JOB_ID, backup.id());
+            state.set(STATE_SPECULATED, true);
+        }
+        return job;
+    }
+
+    /*
+     * A backup copy counts against `retz.quota.*` as another job, but does not go ahead of waiting tasks
+     */
+    private boolean acquireBackupQuota() {
+        Map<String, Integer> limits = config.getQuotaLimits();
+        long leaseMillis = TimeUnit.SECONDS.toMillis(config.getQuotaLeaseTimeout());
+        return RetzQuotaManager.getInstance().acquireExtra(request.getTaskId(), limits, 1, leaseMillis);
+    }
+
+    private void removeBackup(Config state) {
+        state.remove(STATE_BACKUP_JOB_ID);
+        RetzQuotaManager.getInstance().releaseExtra(request.getTaskId(), 1);
+    }
+
+    private static Job followBackup(Job backup, Config state) {
+        state.set(STATE_JOB_ID, backup.id());
+        state.set(STATE_OFFSET, 0L);
+        state.remove(STATE_TIMELINE);
+        state.remove(STATE_OUTPUT);
+        state.remove(STATE_OUTPUT_PENDING);
+        state.remove(STATE_OUTPUT_SKIPPING);
+        state.remove(STATE_LOG_FILTER);
+        return backup;
+    }
+
+    /*
+     * Returns 0 if there are less than `minHistory` successful jobs
+     */
+    private long getMedianDuration(Client webClient, int minHistory) {
+        String tag = spec.getSpeculationTag();
+        Response res;
+        try {
+            res = webClient.list(Job.JobState.FINISHED, java.util.Optional.of(tag));
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to list finished jobs tagged with '{}'", tag, ex);
+            return 0L;
+        }
+        if (!(res instanceof ListJobResponse)) {
+            LOGGER.warn("Failed to list finished jobs tagged with '{}': {}", tag, res.status());
+            return 0L;
+        }
+
+        List<Long> durations = new ArrayList<>();
+        for (Job finished : ((ListJobResponse) res).jobs()) {
+            if (finished.result() == 0 && finished.started() != null && finished.finished() != null) {
+                durations.add(parseTimestamp(finished.finished()) - parseTimestamp(finished.started()));
+            }
+        }
+        if (durations.isEmpty() || durations.size() < minHistory) {
+            return 0L;
+        }
+        Collections.sort(durations);
+        return durations.get(durations.size() / 2);
+    }
+
+    /*
+     * Resubmits the job right away if it has been killed by infrastructure failure (e.g. Mesos agent lost),
+     * up to `infra_retry` times. Returns true if resubmitted.
+     * The deadline of the first job is kept so that resubmission does not extend the timeout.
+     */
+    private boolean resubmitOnInfraFailure(Client webClient, Job job, Config state, Optional<Integer> shardIndex) {
+        if (!isResubmittable(job, state)) {
+            return false;
+        }
+        int retries = state.get(STATE_INFRA_RETRIES, Integer.class, 0);
+
+        LOGGER.warn("Job(id={}) has been killed by infrastructure failure: {}. Resubmitting ({}/{})",
+                job.id(), job.reason(), retries + 1, spec.getInfraRetry());
+
+        exportSpans(getJobSpans(state, shardIndex));
+        for (String key : JOB_STATE_KEYS) {
+            state.remove(key);
+        }
+        // the deadline has been kept by finishJob()
+        processSchedule(webClient, state, shardIndex);
+        state.set(STATE_INFRA_RETRIES, retries + 1);
+        return true;
+    }
+
+    private boolean isResubmittable(Job job, Config state) {
+        return job.state() == Job.JobState.KILLED && job.reason() != null
+                && state.get(STATE_INFRA_RETRIES, Integer.class, 0) < spec.getInfraRetry()
+                && spec.getInfraFailurePattern().matcher(job.reason()).find();
+    }
+
+    private static boolean isFinished(Job job) {
+        return job.state() == Job.JobState.FINISHED || job.state() == Job.JobState.KILLED;
+    }
+
+    private static boolean isSucceeded(Job job) {
+        return job.state() == Job.JobState.FINISHED && job.result() == 0;
+    }
+
     private void initializeTaskState(Job job, Config state) {
         state.set(STATE_JOB_ID, job.id());
         state.set(STATE_POLL_ITERATION, 0);
         state.set(STATE_OFFSET, 0L);
+
+        // a resubmitted job keeps the deadline of the first job
+        if (!state.has(STATE_DEADLINE)) {
+            Optional<Long> deadline = computeDeadline(job);
+            if (deadline.isPresent()) {
+                state.set(STATE_DEADLINE, deadline.get());
+            }
+        }
     }
 
 
-    private TaskExecutionException processGetFile(Job job, Client webClient, Config state) {
+    /*
+     * Returns true if the job has finished
+     */
+    private boolean processGetFile(Job job, Client webClient, Config state) {
 
         switch(job.state()) {
             case QUEUED:
-                checkTimeout(job, webClient);
-                return nextPolling(state);
+                checkTimeout(job, webClient, state);
+                return false;
             case STARTING:
             case STARTED:
-                checkTimeout(job, webClient);
-                getWholeFileByState(job, webClient, "stdout", state);
-                return nextPolling(state);
+                checkTimeout(job, webClient, state);
+                getWholeFileByState(job, webClient, "stdout", false, state);
+                return false;
             case FINISHED:
             case KILLED:
-                getWholeFileByState(job, webClient, "stdout", state);
-                if (config.getVerbose()) {
+                getWholeFileByState(job, webClient, "stdout", true, state);
+                if (spec.getVerbose()) {
                     LOGGER.info("Job(id={}) finished to get stdout, will get stderr", job.id());
                 }
-                getWholeFile(job, webClient, "stderr", 0);
-                return finishJob(job, state);
+                long stderrBytes = getWholeFile(job, webClient, "stderr", 0, false, true, state);
+                state.set(STATE_STDERR_BYTES, stderrBytes);
+                getTimeline(state).mark(RetzTimeline.DRAINED, System.currentTimeMillis());
+                finishJob(job, state);
+                return true;
             default:
                 throw new IllegalStateException("unexpected status: " + job.state());
         }
     }
 
-    private void checkTimeout(Job job, Client webClient) {
-        int timeout = config.getTimeout();
-        if (timeout > 0) {
-            Date scheduled;
-            try {
-                scheduled = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSX").parse(job.scheduled());
-            } catch (ParseException ex) {
-                throw Throwables.propagate(ex);
+    private Optional<Long> computeDeadline(Job job) {
+        int timeout = spec.getTimeout();
+        if (timeout <= 0) {
+            return Optional.absent();
+        }
+        long scheduled;
+        if (job.scheduled() == null) {
+            scheduled = System.currentTimeMillis();
+        } else {
+            scheduled = parseTimestamp(job.scheduled());
+        }
+        return Optional.of(scheduled + TimeUnit.MINUTES.toMillis(timeout));
+    }
+
+    private static long parseTimestamp(String timestamp) {
+        try {
+            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSX").parse(timestamp).getTime();
+        } catch (ParseException ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    private Optional<Long> getDeadline(Job job, Config state) {
+        Optional<Long> deadline = state.getOptional(STATE_DEADLINE, Long.class);
+        if (!deadline.isPresent()) {
+            // state saved without deadline (e.g. by previous plugin versions)
+            deadline = computeDeadline(job);
+            if (deadline.isPresent()) {
+                state.set(STATE_DEADLINE, deadline.get());
             }
-            Calendar limit = Calendar.getInstance();
-            limit.setTime(scheduled);
-            limit.add(Calendar.MINUTE, timeout);
+        }
+        return deadline;
+    }
+
+    private void checkTimeout(Job job, Client webClient, Config state) {
+        Optional<Long> deadline = getDeadline(job, state);
+        if (deadline.isPresent()) {
+            int timeout = spec.getTimeout();
 
-            if (limit.compareTo(Calendar.getInstance()) < 0) {
+            if (deadline.get() <= System.currentTimeMillis()) {
+                Optional<Integer> maybeBackupJobId = state.getOptional(STATE_BACKUP_JOB_ID, Integer.class);
+                if (maybeBackupJobId.isPresent()) {
+                    killJob(webClient, maybeBackupJobId.get());
+                }
                 try {
                     webClient.kill(job.id());
                     throw new TaskExecutionException(String.format(
@@ -190,17 +893,25 @@ public class RetzRunApiOperator extends BaseOperator {
         }
     }
 
-    private TaskExecutionException nextPolling(Config state) {
+    private int nextPollingInterval(Config state) {
         int iteration = state.get(STATE_POLL_ITERATION, Integer.class);
-        int interval = exponentialBackoffInterval(iteration);
+        // deadline has been set by checkTimeout()
+        Optional<Long> remainingMillis = state.getOptional(STATE_DEADLINE, Long.class)
+                .transform(deadline -> deadline - System.currentTimeMillis());
+        int interval = pollingPolicy.nextInterval(iteration, remainingMillis);
+        if (remainingMillis.isPresent()) {
+            // let the next polling land on the deadline
+            long remainingSeconds = TimeUnit.MILLISECONDS.toSeconds(remainingMillis.get() + 999);
+            interval = (int) Math.max(1, Math.min(interval, remainingSeconds));
+        }
         state.set(STATE_POLL_ITERATION, ++iteration);
 
-        return TaskExecutionException.ofNextPolling(interval, ConfigElement.copyOf(state));
+        return interval;
     }
 
-    private void getWholeFileByState(Job job, Client webClient, String filename, Config state) {
+    private void getWholeFileByState(Job job, Client webClient, String filename, boolean complete, Config state) {
             long offset = state.get(STATE_OFFSET, Long.class);
-            long bytesRead = getWholeFile(job, webClient, filename, offset);
+            long bytesRead = getWholeFile(job, webClient, filename, offset, spec.getStoreOutput(), complete, state);
 
             state.set(STATE_OFFSET, offset + bytesRead);
             if (bytesRead != 0) {
@@ -208,9 +919,51 @@ public class RetzRunApiOperator extends BaseOperator {
             }
     }
 
-    private long getWholeFile(Job job, Client webClient, String filename, long offset) {
+    /*
+     * `complete` is true if the job has finished, so that the last line is taken even if it is not terminated
+     */
+    private long getWholeFile(Job job, Client webClient, String filename, long offset, boolean scanOutput,
+                              boolean complete, Config state) {
+        OutputStream out = new CommandLoggerBridge(clog, System.out);
+        Optional<RetzLogFilter.Rules> logFilterRules = spec.getLogFilter();
+        RetzLogFilter logFilter = null;
+        if (logFilterRules.isPresent()) {
+            // kept per file, since stderr is read after stdout has been read through
+            Config filterState = state.getNestedOrGetEmpty(STATE_LOG_FILTER).getNestedOrGetEmpty(filename);
+            logFilter = new RetzLogFilter(out, logFilterRules.get(),
+                    BaseEncoding.base64().decode(filterState.get(STATE_LOG_FILTER_PENDING, String.class, "")),
+                    filterState.getOptional(STATE_LOG_FILTER_LAST_SHAPE_HASH, String.class),
+                    filterState.get(STATE_LOG_FILTER_REPEATS, Long.class, 0L));
+            out = logFilter;
+        }
+        RetzOutputScanner outputScanner = null;
+        if (scanOutput) {
+            byte[] pending = BaseEncoding.base64().decode(state.get(STATE_OUTPUT_PENDING, String.class, ""));
+            outputScanner = new RetzOutputScanner(out, spec.getOutputMarker(),
+                    pending, state.get(STATE_OUTPUT_SKIPPING, Boolean.class, false));
+            out = outputScanner;
+        }
         try {
-            return readFileUntilEmpty(webClient, job.id(), filename, offset, new CommandLoggerBridge(clog, System.out));
+            long bytesRead = readFile(webClient, job.id(), filename, offset, out);
+            out.flush();
+            if (logFilter != null) {
+                if (complete) {
+                    logFilter.finish();
+                }
+                storeLogFilterState(filename, logFilter, complete, state);
+                state.set(STATE_LOG_DROPPED_LINES,
+                        state.get(STATE_LOG_DROPPED_LINES, Long.class, 0L) + logFilter.getDroppedLines());
+                state.set(STATE_LOG_DROPPED_BYTES,
+                        state.get(STATE_LOG_DROPPED_BYTES, Long.class, 0L) + logFilter.getDroppedBytes());
+            }
+            if (outputScanner != null) {
+                if (complete && job.state() == Job.JobState.FINISHED) {
+                    // e.g. printf '##digdag-output {...}'
+                    outputScanner.finish();
+                }
+                storeOutputs(job, outputScanner, state);
+            }
+            return bytesRead;
         } catch (IOException ex) {
             throw new RuntimeException(String.format(
                     "Job(id=%s) failed with unexpected error", job.id()), ex);
@@ -218,6 +971,89 @@ public class RetzRunApiOperator extends BaseOperator {
         }
     }
 
+    private static void storeLogFilterState(String filename, RetzLogFilter logFilter, boolean complete, Config state) {
+        Config filterStates = state.getNestedOrSetEmpty(STATE_LOG_FILTER);
+        if (complete) {
+            filterStates.remove(filename);
+        } else {
+            Config filterState = filterStates.getNestedOrSetEmpty(filename);
+            byte[] pending = logFilter.getPending();
+            if (pending.length > 0) {
+                filterState.set(STATE_LOG_FILTER_PENDING, BaseEncoding.base64().encode(pending));
+            } else {
+                filterState.remove(STATE_LOG_FILTER_PENDING);
+            }
+            filterState.setOptional(STATE_LOG_FILTER_LAST_SHAPE_HASH, logFilter.getLastShapeHash());
+            filterState.set(STATE_LOG_FILTER_REPEATS, logFilter.getRepeats());
+        }
+        if (filterStates.isEmpty()) {
+            state.remove(STATE_LOG_FILTER);
+        }
+    }
+
+    private void storeOutputs(Job job, RetzOutputScanner outputScanner, Config state) {
+        if (outputScanner.getOverflows() > 0) {
+            LOGGER.warn("Job(id={}) ignored {} output line(s) longer than {} bytes",
+                    job.id(), outputScanner.getOverflows(), RetzOutputScanner.MAX_LINE_LENGTH);
+        }
+        for (String json : outputScanner.getOutputs()) {
+            try {
+                Config output = request.getConfig().getFactory().fromJsonString(json);
+                state.getNestedOrSetEmpty(STATE_OUTPUT).merge(output);
+            } catch (ConfigException | ClassCastException ex) {
+                LOGGER.warn("Job(id={}) ignored invalid output: {}", job.id(), json, ex);
+            }
+        }
+
+        byte[] pending = outputScanner.getPending();
+        if (pending.length > 0) {
+            state.set(STATE_OUTPUT_PENDING, BaseEncoding.base64().encode(pending));
+        } else {
+            state.remove(STATE_OUTPUT_PENDING);
+        }
+        if (outputScanner.isSkipping()) {
+            state.set(STATE_OUTPUT_SKIPPING, true);
+        } else {
+            state.remove(STATE_OUTPUT_SKIPPING);
+        }
+    }
+
+    /*
+     * Reads raw bytes from the server when available, otherwise by the getFile API
+     */
+    private long readFile(Client webClient, int id, String filename, long offset, OutputStream out) throws IOException {
+        if (jobServer.isPresent() && config.getRawLogTransport()) {
+            RetzOperatorConfig.ClientConfig clientConfig = config.getServerClientConfig();
+            RetzRawFileReader rawReader = new RetzRawFileReader(jobServer.get(),
+                    clientConfig.authenticationEnabled()
+                            ? Optional.of(clientConfig.getAuthenticator())
+                            : Optional.absent(),
+                    !clientConfig.insecure());
+            if (rawReader.isSupported()) {
+                Optional<Long> bytesRead = rawReader.read(id, filename, offset, out);
+                if (bytesRead.isPresent()) {
+                    return bytesRead.get();
+                }
+            }
+        }
+        return readFileUntilEmpty(webClient, id, filename, offset, out);
+    }
+
+    /*
+     * Same server as createClient(state), or absent for `client_config`
+     */
+    private Optional<URI> getJobServer(Config state) {
+        Optional<String> maybeJobServerUri = state.getOptional(STATE_SERVER_URI, String.class);
+        if (maybeJobServerUri.isPresent()) {
+            return Optional.of(RetzServerRouter.toUri(maybeJobServerUri.get()));
+        }
+        List<URI> servers = router.getServers();
+        if (!servers.isEmpty()) {
+            return Optional.of(servers.get(0));
+        }
+        return Optional.absent();
+    }
+
     private static long readFileUntilEmpty(Client c, int id, String filename, long offset, OutputStream out) throws IOException {
         long current = offset;
 
@@ -249,22 +1085,33 @@ public class RetzRunApiOperator extends BaseOperator {
         }
     }
 
-    private TaskExecutionException finishJob(Job job, Config state) {
+    private void finishJob(Job job, Config state) {
         String duration = getDuration(job.started(), job.finished());
 
         LOGGER.info("Job(id={}) finished in {}. status: {}",
                 job.id(), duration, job.state());
+        if (state.has(STATE_LOG_DROPPED_LINES)) {
+            LOGGER.info("Job(id={}) log_filter dropped {} line(s), {} byte(s)",
+                    job.id(), state.get(STATE_LOG_DROPPED_LINES, Long.class),
+                    state.get(STATE_LOG_DROPPED_BYTES, Long.class));
+        }
 
         state.set(STATE_RESULT_CODE, job.result());
         state.set(STATE_DURATION, duration);
+        state.set(STATE_STDOUT_BYTES, state.get(STATE_OFFSET, Long.class));
         state.remove(STATE_POLL_ITERATION);
         state.remove(STATE_OFFSET);
+        if (!isResubmittable(job, state)) {
+            state.remove(STATE_DEADLINE);
+        }
+        state.remove(STATE_OUTPUT_PENDING);
+        state.remove(STATE_OUTPUT_SKIPPING);
+        state.remove(STATE_LOG_FILTER);
+        state.remove(STATE_MEDIAN_DURATION);
 
         if (job.result() != 0) {
             state.set(STATE_REASON, job.reason());
         }
-
-        return TaskExecutionException.ofNextPolling(0, ConfigElement.copyOf(state));
     }
 
     private String getDuration(String started, String finished) {
@@ -278,7 +1125,10 @@ public class RetzRunApiOperator extends BaseOperator {
         } catch(ParseException ex) {
             throw Throwables.propagate(ex);
         }
+        return formatDuration(duration);
+    }
 
+    private static String formatDuration(long duration) {
         if (duration < 0) {
             return "-";
         } else if (duration < 1000) {
@@ -289,34 +1139,24 @@ public class RetzRunApiOperator extends BaseOperator {
     }
 
 
-    private Client createClient() {
-        Optional<String> maybeServerUri = config.getServerUri();
-        if (maybeServerUri.isPresent()) {
-            URI serverUri;
-            try {
-                serverUri = new URI(maybeServerUri.get());
-            } catch (URISyntaxException ex) {
-                throw new ConfigException(String.format(
-                        "Invalid '%s': %s", RetzOperatorConfig.KEY_SYSCONF_SERVER_URI, maybeServerUri.get()), ex);
-            }
-            Properties p = new Properties();
-            if (config.getAuthenticationEnabled().isPresent()) {
-                p.setProperty(RetzOperatorConfig.KEY_SYSCONF_AUTH_ENABLED, config.getAuthenticationEnabled().get());
-            }
-            if (config.getAccessKey().isPresent()) {
-                p.setProperty(RetzOperatorConfig.KEY_SYSCONF_ACCESS_KEY, config.getAccessKey().get());
-            }
-            if (config.getAccessSecret().isPresent()) {
-                p.setProperty(RetzOperatorConfig.KEY_SYSCONF_ACCESS_SECRET, config.getAccessSecret().get());
-            }
-            RetzOperatorConfig.ClientConfig clientConfig = new RetzOperatorConfig.ClientConfig(p);
+    private Client createClient(Config state) {
+        return createClient(state, ImmutableSet.of());
+    }
 
-            return Client.newBuilder(serverUri)
-                    .setAuthenticator(clientConfig.getAuthenticator())
-                    .checkCert(!clientConfig.insecure())
-                    .setVerboseLog(config.getVerbose())
-                    .build();
-        } else if (config.getClientConfig(workspace).isPresent()) {
+    /*
+     * `failedServers` are skipped when a server is selected for a new submission
+     */
+    private Client createClient(Config state, Set<URI> failedServers) {
+        Optional<String> maybeJobServerUri = state.getOptional(STATE_SERVER_URI, String.class);
+        List<URI> servers = router.getServers();
+        if (maybeJobServerUri.isPresent()) {
+            return createClient(RetzServerRouter.toUri(maybeJobServerUri.get()));
+        } else if (servers.size() > 1 && !state.has(STATE_JOB_ID)) {
+            return selectServer(state, failedServers);
+        } else if (!servers.isEmpty()) {
+            // jobs scheduled by previous plugin versions run on the first server
+            return createClient(servers.get(0));
+        } else if (spec.getClientConfig().isPresent()) {
             ClientCLIConfig fileConfig;
             try {
                 fileConfig = new ClientCLIConfig(config.getClientConfig(workspace).get());
@@ -327,7 +1167,7 @@ public class RetzRunApiOperator extends BaseOperator {
             return Client.newBuilder(fileConfig.getUri())
                     .setAuthenticator(fileConfig.getAuthenticator())
                     .checkCert(!fileConfig.insecure())
-                    .setVerboseLog(config.getVerbose())
+                    .setVerboseLog(spec.getVerbose())
                     .build();
         } else {
             throw new ConfigException(String.format(
@@ -336,26 +1176,76 @@ public class RetzRunApiOperator extends BaseOperator {
         }
     }
 
-    private Job createJob() {
-        String appName = config.getAppName();
-        String remoteCmd = config.getRemoteCommand();
-        Properties envProps = config.getEnvProps();
+    private Client selectServer(Config state, Set<URI> failedServers) {
+        Map<URI, Optional<Integer>> queueLengths = new HashMap<>();
+        Function<URI, Optional<Integer>> probe = uri -> queueLengths.computeIfAbsent(uri, this::getQueueLength);
+
+        for (URI serverUri : router.route(spec.getAppName(), probe)) {
+            if (failedServers.contains(serverUri)) {
+                continue;
+            }
+            if (probe.apply(serverUri).isPresent()) {
+                LOGGER.info("Retz server {} selected (queued jobs: {})", serverUri, probe.apply(serverUri).get());
+                state.set(STATE_SERVER_URI, serverUri.toString());
+                return createClient(serverUri);
+            }
+            LOGGER.warn("Retz server {} is unavailable, trying another server", serverUri);
+        }
+        throw new RuntimeException(String.format(
+                "Failed to schedule Retz job: no Retz server is available in %s", router.getServers()));
+    }
+
+    private Optional<Integer> getQueueLength(URI serverUri) {
+        try (Client webClient = createClient(serverUri)) {
+            Response res = webClient.status();
+            if (res instanceof StatusResponse) {
+                return Optional.of(((StatusResponse) res).queueLength());
+            }
+            LOGGER.warn("Failed to get status of Retz server {}: {}", serverUri, res.status());
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to get status of Retz server {}", serverUri, ex);
+        }
+        return Optional.absent();
+    }
 
-        int cpu = config.getCpu();
-        int mem = config.getMemory();
-        int disk = config.getDisk();
-        int gpu = config.getGpu();
-        int ports = config.getPorts();
-        int priority = config.getPriority();
-        String name = config.getJobName();
-        List<String> tags = config.getTags();
+    private Client createClient(URI serverUri) {
+        RetzOperatorConfig.ClientConfig clientConfig = config.getServerClientConfig();
 
-        boolean verbose = config.getVerbose();
+        return Client.newBuilder(serverUri)
+                .setAuthenticator(clientConfig.getAuthenticator())
+                .checkCert(!clientConfig.insecure())
+                .setVerboseLog(spec.getVerbose())
+                .build();
+    }
+
+    private Job createJob(Optional<Integer> shardIndex) {
+        String appName = spec.getAppName();
+        String remoteCmd = spec.getRemoteCommand();
+        Properties envProps = spec.getEnvProps();
+        if (shardIndex.isPresent()) {
+            envProps.setProperty(ENV_SHARD_INDEX, String.valueOf(shardIndex.get()));
+            envProps.setProperty(ENV_SHARD_COUNT, String.valueOf(spec.getShards()));
+        }
+
+        int cpu = spec.getCpu();
+        int mem = spec.getMemory();
+        int disk = spec.getDisk();
+        int gpu = spec.getGpu();
+        int ports = spec.getPorts();
+        int priority = spec.getPriority();
+        String name = spec.getJobName();
+        List<String> tags = spec.getTags();
+
+        boolean verbose = spec.getVerbose();
 
         Job job = new Job(appName, remoteCmd, envProps, cpu, mem, disk, gpu, ports);
         job.setPriority(priority);
         job.setName(name);
         job.addTags(tags);
+        job.addTags(ImmutableList.of(spec.getTaskTag()));
+        if (spec.isSpeculative()) {
+            job.addTags(ImmutableList.of(spec.getSpeculationTag()));
+        }
 
         if (verbose) {
             LOGGER.info("Job created: {}", job);
@@ -377,7 +1267,7 @@ public class RetzRunApiOperator extends BaseOperator {
             if (getJobResponse.job().isPresent()) {
                 return getJobResponse.job().get();
             } else {
-                throw Throwables.propagate(new JobNotFoundException(id));
+                throw RetzClientHolder.jobNotFound(id);
             }
         } else {
             throw new TaskExecutionException(String.format(
@@ -386,8 +1276,17 @@ public class RetzRunApiOperator extends BaseOperator {
         }
     }
 
-    private int exponentialBackoffInterval(int iteration) {
-        return Math.min(Math.max(config.getMinPollInterval(), (int)Math.pow(2, iteration)), config.getMaxPollInterval());
+    /*
+     * Keeps Retz client classes out of the initialization and verification of the operator class,
+     * so that newOperator() does not load them.
+     */
+    private static class RetzClientHolder {
+        private static final List<Job.JobState> ORPHAN_JOB_STATES = ImmutableList.of(
+                Job.JobState.QUEUED, Job.JobState.STARTING, Job.JobState.STARTED);
+
+        private static RuntimeException jobNotFound(int id) {
+            return Throwables.propagate(new JobNotFoundException(id));
+        }
     }
 
     static class CommandLoggerBridge extends OutputStream {
@@ -20,13 +20,11 @@ public class RetzRunCliOperator extends BaseOperator {
     private static final Logger LOGGER = LoggerFactory.getLogger(RetzRunCliOperator.class);
 
     private final RetzOperatorConfig config;
-    private final CommandExecutor exec;
     private final CommandLogger clog;
 
-    RetzRunCliOperator(OperatorContext context, RetzOperatorConfig config, CommandExecutor exec, CommandLogger clog) {
+    RetzRunCliOperator(OperatorContext context, RetzOperatorConfig config, CommandLogger clog) {
         super(context);
         this.config = config;
-        this.exec = exec;
         this.clog = clog;
     }
 
@@ -78,7 +76,8 @@ public class RetzRunCliOperator extends BaseOperator {
 
         int ecode;
         try {
-            Process p = exec.start(workspace.getPath(), request, pb);
+            // retz-client runs on the digdag server; 'docker' is rejected by RetzRunOperatorFactory
+            Process p = pb.start();
             try {
                 //try (Writer writer = new BufferedWriter(new OutputStreamWriter(p.getOutputStream()))) {
                 //    writer.write(taskCommand);
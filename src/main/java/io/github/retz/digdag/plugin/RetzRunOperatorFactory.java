@@ -9,13 +9,11 @@ import io.digdag.spi.*;
 
 public class RetzRunOperatorFactory implements OperatorFactory {
 
-    private final CommandExecutor exec;
     private final CommandLogger clog;
     private final Config systemConfig;
 
     @Inject
-    RetzRunOperatorFactory(CommandExecutor exec, CommandLogger clog, Config systemConfig) {
-        this.exec = exec;
+    RetzRunOperatorFactory(CommandLogger clog, Config systemConfig) {
         this.clog = clog;
         this.systemConfig = systemConfig;
     }
@@ -28,12 +26,18 @@ public class RetzRunOperatorFactory implements OperatorFactory {
     @Override
     public Operator newOperator(OperatorContext context) {
         RetzOperatorConfig config = new RetzOperatorConfig(context.getTaskRequest(), systemConfig);
-        String clientMode = config.getClientMode();
+        String clientMode = config.getJobSpec().getClientMode();
         switch (clientMode) {
             case "api":
                 return new RetzRunApiOperator(context, config, clog);
             case "cli":
-                return new RetzRunCliOperator(context, config, exec, clog);
+                if (config.getJobSpec().getShards() > 1) {
+                    throw new ConfigException("retz: 'shards' is not supported with client_mode: cli");
+                }
+                if (context.getTaskRequest().getConfig().has("docker")) {
+                    throw new ConfigException("retz: 'docker' is not supported with client_mode: cli");
+                }
+                return new RetzRunCliOperator(context, config, clog);
             default:
                 throw new ConfigException(MessageFormat.format(
                         "retz: invalid client_mode: {0}",
@@ -0,0 +1,116 @@
+package io.github.retz.digdag.plugin;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import io.digdag.client.config.ConfigException;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+/*
+ * Decides the order of Retz servers to which a new job is submitted.
+ * The first reachable server is used, and following ones are for failover.
+ */
+class RetzServerRouter {
+
+    enum Policy {
+        LEAST_QUEUED, WEIGHTED, STICKY;
+
+        static Policy of(String name) {
+            try {
+                return valueOf(name.replace('-', '_').toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException ex) {
+                throw new ConfigException(String.format(
+                        "Invalid '%s': %s", RetzOperatorConfig.KEY_SYSCONF_SERVER_ROUTING, name), ex);
+            }
+        }
+    }
+
+    private final List<URI> servers;
+    private final List<Integer> weights;
+    private final Policy policy;
+
+    RetzServerRouter(RetzOperatorConfig config) {
+        this(toUris(config.getServerUris()), Policy.of(config.getServerRouting()), config.getServerWeights());
+    }
+
+    RetzServerRouter(List<URI> servers, Policy policy, List<Integer> weights) {
+        if (policy == Policy.WEIGHTED && weights.size() != servers.size()) {
+            throw new ConfigException(String.format(
+                    "'%s' must have the same number of entries as '%s'",
+                    RetzOperatorConfig.KEY_SYSCONF_SERVER_WEIGHTS, RetzOperatorConfig.KEY_SYSCONF_SERVER_URIS));
+        }
+        this.servers = ImmutableList.copyOf(servers);
+        this.policy = policy;
+        this.weights = weights;
+    }
+
+    List<URI> getServers() {
+        return servers;
+    }
+
+    /*
+     * `queueLength` returns the number of queued jobs of the server, or absent if the server is unreachable.
+     * It is called only for the least-queued policy.
+     */
+    List<URI> route(String appName, Function<URI, Optional<Integer>> queueLength) {
+        switch (policy) {
+            case LEAST_QUEUED:
+                List<URI> ordered = new ArrayList<>(servers);
+                ordered.sort(Comparator.comparing(uri -> queueLength.apply(uri).or(Integer.MAX_VALUE)));
+                return ordered;
+            case WEIGHTED:
+                return rotate(pickWeighted());
+            case STICKY:
+                return rotate(Math.floorMod(appName.hashCode(), servers.size()));
+            default:
+                throw new IllegalStateException("unexpected policy: " + policy);
+        }
+    }
+
+    static URI toUri(String uri) {
+        try {
+            return new URI(uri);
+        } catch (URISyntaxException ex) {
+            throw new ConfigException(String.format(
+                    "Invalid '%s': %s", RetzOperatorConfig.KEY_SYSCONF_SERVER_URI, uri), ex);
+        }
+    }
+
+    private static List<URI> toUris(List<String> uris) {
+        ImmutableList.Builder<URI> servers = ImmutableList.builder();
+        for (String uri : uris) {
+            servers.add(toUri(uri));
+        }
+        return servers.build();
+    }
+
+    private int pickWeighted() {
+        int total = weights.stream().mapToInt(w -> Math.max(0, w)).sum();
+        if (total <= 0) {
+            return 0;
+        }
+        int point = ThreadLocalRandom.current().nextInt(total);
+        for (int i = 0; i < weights.size(); i++) {
+            point -= Math.max(0, weights.get(i));
+            if (point < 0) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private List<URI> rotate(int first) {
+        ImmutableList.Builder<URI> ordered = ImmutableList.builder();
+        for (int i = 0; i < servers.size(); i++) {
+            ordered.add(servers.get((first + i) % servers.size()));
+        }
+        return ordered.build();
+    }
+}
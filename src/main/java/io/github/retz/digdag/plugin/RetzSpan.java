@@ -0,0 +1,97 @@
+package io.github.retz.digdag.plugin;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A finished span of a task or a Retz job, modeled after OpenTelemetry spans.
+ * Ids are derived from the task and the job so that spans exported in different pollings share the same trace.
+ */
+public final class RetzSpan {
+
+    private final String traceId;
+    private final String spanId;
+    private final Optional<String> parentSpanId;
+    private final String name;
+    private final long startMillis;
+    private final long endMillis;
+    private final boolean ok;
+    private final Map<String, Object> attributes;
+
+    RetzSpan(String traceId, String spanId, Optional<String> parentSpanId, String name,
+             long startMillis, long endMillis, boolean ok, Map<String, Object> attributes) {
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentSpanId = parentSpanId;
+        this.name = name;
+        this.startMillis = startMillis;
+        this.endMillis = Math.max(startMillis, endMillis);
+        this.ok = ok;
+        this.attributes = ImmutableMap.copyOf(attributes);
+    }
+
+    static String newTraceId(String key) {
+        return Hashing.sha256().hashString(key, UTF_8).toString().substring(0, 32);
+    }
+
+    static String newSpanId(String key) {
+        return Hashing.sha256().hashString(key, UTF_8).toString().substring(0, 16);
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public String getSpanId() {
+        return spanId;
+    }
+
+    public Optional<String> getParentSpanId() {
+        return parentSpanId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public long getEndMillis() {
+        return endMillis;
+    }
+
+    public boolean isOk() {
+        return ok;
+    }
+
+    public Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * Returns the span in the field names of OpenTelemetry JSON encoding
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("traceId", traceId);
+        map.put("spanId", spanId);
+        if (parentSpanId.isPresent()) {
+            map.put("parentSpanId", parentSpanId.get());
+        }
+        map.put("name", name);
+        map.put("startTimeUnixNano", TimeUnit.MILLISECONDS.toNanos(startMillis));
+        map.put("endTimeUnixNano", TimeUnit.MILLISECONDS.toNanos(endMillis));
+        map.put("status", ok ? "OK" : "ERROR");
+        map.put("attributes", attributes);
+        return map;
+    }
+}
@@ -0,0 +1,13 @@
+package io.github.retz.digdag.plugin;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Exports spans of `retz_run>` tasks.
+ * Implementations given by class name in `retz.tracing.exporter` must have a public no-arg constructor.
+ */
+public interface RetzSpanExporter {
+
+    void export(List<RetzSpan> spans) throws IOException;
+}
@@ -0,0 +1,89 @@
+package io.github.retz.digdag.plugin;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.digdag.client.config.ConfigException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ * Span exporters selected by `retz.tracing.exporter`:
+ *   log:    one JSON line per span to the plugin log (default)
+ *   file:   one JSON line per span appended to `retz.tracing.file`
+ *   none:   spans are not exported
+ *   <FQCN>: a RetzSpanExporter implementation
+ */
+final class RetzSpanExporters {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RetzSpanExporters.class);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    // tasks running in the same JVM append to the same file
+    private static final Object FILE_LOCK = new Object();
+
+    private RetzSpanExporters() {
+    }
+
+    static RetzSpanExporter of(RetzOperatorConfig config) {
+        String exporter = config.getTracingExporter();
+        switch (exporter) {
+            case "none":
+                return spans -> { };
+            case "log":
+                return RetzSpanExporters::exportToLog;
+            case "file":
+                if (!config.getTracingFile().isPresent()) {
+                    throw new ConfigException(String.format(
+                            "'%s' is required for '%s = file'",
+                            RetzOperatorConfig.KEY_SYSCONF_TRACING_FILE, RetzOperatorConfig.KEY_SYSCONF_TRACING_EXPORTER));
+                }
+                Path path = Paths.get(config.getTracingFile().get());
+                return spans -> exportToFile(path, spans);
+            default:
+                return newInstance(exporter);
+        }
+    }
+
+    private static void exportToLog(List<RetzSpan> spans) throws IOException {
+        for (RetzSpan span : spans) {
+            LOGGER.info("span: {}", toJson(span));
+        }
+    }
+
+    private static void exportToFile(Path path, List<RetzSpan> spans) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (RetzSpan span : spans) {
+            lines.add(toJson(span));
+        }
+        synchronized (FILE_LOCK) {
+            Files.write(path, lines, UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+    }
+
+    private static String toJson(RetzSpan span) throws JsonProcessingException {
+        return MAPPER.writeValueAsString(span.toMap());
+    }
+
+    private static RetzSpanExporter newInstance(String className) {
+        try {
+            return Class.forName(className, true, RetzSpanExporters.class.getClassLoader())
+                    .asSubclass(RetzSpanExporter.class)
+                    .getDeclaredConstructor()
+                    .newInstance();
+        } catch (ReflectiveOperationException | ClassCastException ex) {
+            throw new ConfigException(String.format(
+                    "Invalid '%s': %s", RetzOperatorConfig.KEY_SYSCONF_TRACING_EXPORTER, className), ex);
+        }
+    }
+}
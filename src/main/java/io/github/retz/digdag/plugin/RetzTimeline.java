@@ -0,0 +1,142 @@
+package io.github.retz.digdag.plugin;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.digdag.client.config.Config;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Lifecycle of a Retz job, kept in the task state so that it survives across pollings.
+ * Each event is recorded once, in epoch milliseconds:
+ *
+ *   scheduleRequested --(schedule)--> queued --(queue)--> starting --(launch)--> started
+ *     --(run)--> finished --(drain)--> drained
+ *
+ * `queued`, `started` and `finished` are the timestamps of the Retz server.
+ * `scheduleRequested`, `starting` and `drained` are observed by the operator,
+ * so `starting` is the first polling which saw the job in STARTING state.
+ */
+class RetzTimeline {
+
+    static final String SCHEDULE_REQUESTED = "scheduleRequested";
+    static final String QUEUED = "queued";
+    static final String STARTING = "starting";
+    static final String STARTED = "started";
+    static final String FINISHED = "finished";
+    static final String DRAINED = "drained";
+
+    static final String JOB_SPAN = "retz.job";
+
+    static final String RUN_MS = "run_ms";
+
+    private static class Phase {
+        private final String name;
+        private final String summaryKey;
+        private final List<String> starts;
+        private final List<String> ends;
+
+        Phase(String name, String summaryKey, List<String> starts, List<String> ends) {
+            this.name = name;
+            this.summaryKey = summaryKey;
+            this.starts = starts;
+            this.ends = ends;
+        }
+    }
+
+    // a phase starts at the first recorded event of `starts`, and ends at the first recorded event of `ends`
+    private static final List<Phase> PHASES = ImmutableList.of(
+            new Phase("retz.schedule", "schedule_ms", ImmutableList.of(SCHEDULE_REQUESTED), ImmutableList.of(QUEUED)),
+            new Phase("retz.queue", "queue_ms", ImmutableList.of(QUEUED), ImmutableList.of(STARTING, STARTED, FINISHED)),
+            new Phase("retz.launch", "launch_ms", ImmutableList.of(STARTING), ImmutableList.of(STARTED)),
+            new Phase("retz.run", RUN_MS, ImmutableList.of(STARTED), ImmutableList.of(FINISHED)),
+            new Phase("retz.drain", "drain_ms", ImmutableList.of(FINISHED), ImmutableList.of(DRAINED)));
+
+    private static final Phase JOB_PHASE = new Phase(JOB_SPAN, "total_ms",
+            ImmutableList.of(SCHEDULE_REQUESTED, QUEUED), ImmutableList.of(DRAINED, FINISHED));
+
+    private final Config events;
+
+    RetzTimeline(Config events) {
+        this.events = events;
+    }
+
+    boolean has(String event) {
+        return events.has(event);
+    }
+
+    Optional<Long> get(String event) {
+        return events.getOptional(event, Long.class);
+    }
+
+    void mark(String event, long millis) {
+        if (!events.has(event)) {
+            events.set(event, millis);
+        }
+    }
+
+    /*
+     * Durations of the recorded phases in milliseconds, e.g. {"queue_ms": 1200, "run_ms": 53000, ...}
+     */
+    Map<String, Long> summarize() {
+        Map<String, Long> summary = new LinkedHashMap<>();
+        for (Phase phase : PHASES) {
+            Optional<Long> duration = getDuration(phase);
+            if (duration.isPresent()) {
+                summary.put(phase.summaryKey, duration.get());
+            }
+        }
+        Optional<Long> total = getDuration(JOB_PHASE);
+        if (total.isPresent()) {
+            summary.put(JOB_PHASE.summaryKey, total.get());
+        }
+        return summary;
+    }
+
+    /*
+     * A span of the whole job (`jobSpanId`) under `parentSpanId`, and spans of the recorded phases under the job span
+     */
+    List<RetzSpan> toSpans(String traceId, String parentSpanId, String jobSpanId, boolean ok, Map<String, Object> attributes) {
+        ImmutableList.Builder<RetzSpan> spans = ImmutableList.builder();
+        Optional<Long> jobStart = first(JOB_PHASE.starts);
+        Optional<Long> jobEnd = first(JOB_PHASE.ends);
+        if (!jobStart.isPresent() || !jobEnd.isPresent()) {
+            return spans.build();
+        }
+
+        spans.add(new RetzSpan(traceId, jobSpanId, Optional.of(parentSpanId), JOB_SPAN,
+                jobStart.get(), jobEnd.get(), ok, attributes));
+        for (Phase phase : PHASES) {
+            Optional<Long> start = first(phase.starts);
+            Optional<Long> end = first(phase.ends);
+            if (start.isPresent() && end.isPresent()) {
+                spans.add(new RetzSpan(traceId, RetzSpan.newSpanId(jobSpanId + ":" + phase.name),
+                        Optional.of(jobSpanId), phase.name, start.get(), end.get(), true, ImmutableMap.of()));
+            }
+        }
+        return spans.build();
+    }
+
+    private Optional<Long> getDuration(Phase phase) {
+        Optional<Long> start = first(phase.starts);
+        Optional<Long> end = first(phase.ends);
+        if (!start.isPresent() || !end.isPresent()) {
+            return Optional.absent();
+        }
+        // timestamps of the Retz server and the digdag server may be slightly skewed
+        return Optional.of(Math.max(0L, end.get() - start.get()));
+    }
+
+    private Optional<Long> first(List<String> keys) {
+        for (String key : keys) {
+            Optional<Long> millis = events.getOptional(key, Long.class);
+            if (millis.isPresent()) {
+                return millis;
+            }
+        }
+        return Optional.absent();
+    }
+}
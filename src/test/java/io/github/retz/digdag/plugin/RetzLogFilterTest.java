@@ -0,0 +1,178 @@
+package io.github.retz.digdag.plugin;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.guava.GuavaModule;
+import com.google.common.base.Optional;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigException;
+import io.digdag.client.config.ConfigFactory;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+
+public class RetzLogFilterTest {
+
+    private static final ConfigFactory CF = new ConfigFactory(new ObjectMapper().registerModule(new GuavaModule()));
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    @Test
+    public void keepsIncludedLinesEvenIfExcluded() throws IOException {
+        RetzLogFilter filter = newFilter(rules("{\"exclude\": [\".*\"]}"));
+        write(filter, "debug: start\nERROR: failed\nException in thread main\ndebug: end\n");
+        filter.finish();
+
+        assertEquals("ERROR: failed\nException in thread main\n", output());
+        assertEquals(2, filter.getDroppedLines());
+        assertEquals("debug: start\ndebug: end\n".length(), filter.getDroppedBytes());
+    }
+
+    @Test
+    public void dropsExcludedLines() throws IOException {
+        RetzLogFilter filter = newFilter(rules("{\"include\": [], \"exclude\": [\"^DEBUG\"]}"));
+        write(filter, "INFO a\nDEBUG b\nINFO c\n");
+        filter.finish();
+
+        assertEquals("INFO a\nINFO c\n", output());
+        assertEquals(1, filter.getDroppedLines());
+    }
+
+    @Test
+    public void samplesLinesOfTheSameShape() throws IOException {
+        RetzLogFilter filter = newFilter(rules("{\"sample\": 2}"));
+        write(filter, "row 1\nrow 2\nrow 3\nrow 4\ndone\nrow 5\n");
+        filter.finish();
+
+        assertEquals("row 1\nrow 3\ndone\nrow 5\n", output());
+    }
+
+    @Test
+    public void collapsesProgressBars() throws IOException {
+        RetzLogFilter filter = newFilter(rules("{}"));
+        write(filter, "10%\r50%\r100%\r\nnext\n");
+        filter.finish();
+
+        assertEquals("100%\r\nnext\n", output());
+        assertEquals("10%\r50%\r".length(), filter.getDroppedBytes());
+    }
+
+    @Test
+    public void keepsProgressBarsIfNotCollapsed() throws IOException {
+        RetzLogFilter filter = newFilter(rules("{\"collapse_progress\": false}"));
+        write(filter, "10%\r100%\n");
+        filter.finish();
+
+        assertEquals("10%\r100%\n", output());
+    }
+
+    @Test
+    public void holdsIncompleteLineOnFlush() throws IOException {
+        RetzLogFilter filter = newFilter(rules("{\"exclude\": [\"^some\"]}"));
+        write(filter, "some ERR");
+        filter.flush();
+
+        assertEquals("", output());
+        assertEquals("some ERR", new String(filter.getPending(), UTF_8));
+        assertEquals(0, filter.getDroppedLines());
+    }
+
+    @Test
+    public void matchesLineWrittenAcrossPollings() throws IOException {
+        RetzLogFilter.Rules rules = rules("{\"exclude\": [\"^some\"]}");
+        RetzLogFilter first = newFilter(rules);
+        write(first, "some ERR");
+        first.flush();
+
+        RetzLogFilter second = new RetzLogFilter(out, rules,
+                first.getPending(), first.getLastShapeHash(), first.getRepeats());
+        write(second, "OR here\nsome info\n");
+        second.flush();
+
+        assertEquals("some ERROR here\n", output());
+        assertEquals(0, second.getPending().length);
+    }
+
+    @Test
+    public void resumesSamplingAcrossPollings() throws IOException {
+        RetzLogFilter.Rules rules = rules("{\"sample\": 3}");
+        RetzLogFilter first = newFilter(rules);
+        write(first, "row 1\nrow 2\n");
+        first.flush();
+
+        RetzLogFilter second = new RetzLogFilter(out, rules,
+                first.getPending(), first.getLastShapeHash(), first.getRepeats());
+        write(second, "row 3\nrow 4\n");
+        second.flush();
+
+        assertEquals("row 1\nrow 4\n", output());
+    }
+
+    @Test
+    public void keepsShapeOfLongLineAsFixedSizeHash() throws IOException {
+        RetzLogFilter filter = newFilter(rules("{\"sample\": 2}"));
+        byte[] line = new byte[65536];
+        Arrays.fill(line, (byte) 'x');
+        line[line.length - 1] = '\n';
+        filter.write(line, 0, line.length);
+        filter.flush();
+
+        assertEquals(32, filter.getLastShapeHash().get().length());
+    }
+
+    @Test
+    public void finishProcessesIncompleteLine() throws IOException {
+        RetzLogFilter filter = newFilter(rules("{\"include\": [], \"exclude\": [\"^drop\"]}"));
+        write(filter, "keep\nlast line");
+        filter.flush();
+        assertEquals("keep\n", output());
+
+        filter.finish();
+        assertEquals("keep\nlast line", output());
+        assertEquals(0, filter.getPending().length);
+    }
+
+    @Test
+    public void processesTooLongLineWithoutLineFeed() throws IOException {
+        RetzLogFilter filter = newFilter(rules("{}"));
+        byte[] line = new byte[65536];
+        Arrays.fill(line, (byte) 'x');
+        filter.write(line, 0, line.length);
+        filter.flush();
+
+        assertEquals(line.length, out.size());
+        assertEquals(0, filter.getPending().length);
+    }
+
+    @Test(expected = ConfigException.class)
+    public void rejectsInvalidPattern() {
+        rules("{\"exclude\": [\"(\"]}");
+    }
+
+    @Test(expected = ConfigException.class)
+    public void rejectsInvalidSampleRate() {
+        rules("{\"sample\": 0}");
+    }
+
+    private RetzLogFilter newFilter(RetzLogFilter.Rules rules) {
+        return new RetzLogFilter(out, rules, new byte[0], Optional.absent(), 0L);
+    }
+
+    private static RetzLogFilter.Rules rules(String json) {
+        Config config = CF.fromJsonString(json);
+        return new RetzLogFilter.Rules(config);
+    }
+
+    private static void write(RetzLogFilter filter, String text) throws IOException {
+        byte[] bytes = text.getBytes(UTF_8);
+        filter.write(bytes, 0, bytes.length);
+    }
+
+    private String output() {
+        return new String(out.toByteArray(), UTF_8);
+    }
+}
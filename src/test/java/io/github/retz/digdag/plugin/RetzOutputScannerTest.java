@@ -0,0 +1,116 @@
+package io.github.retz.digdag.plugin;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetzOutputScannerTest {
+
+    private static final String MARKER = "##digdag-output";
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    @Test
+    public void passesThroughAndCapturesMarkerLines() throws IOException {
+        RetzOutputScanner scanner = newScanner(new byte[0], false);
+        String text = "hello\n##digdag-output {\"rows\": 100}\nbye ##digdag-output {\"x\": 1}\n##digdag-output  {\"y\": 2} \n";
+        write(scanner, text);
+
+        assertEquals(text, new String(out.toByteArray(), UTF_8));
+        assertEquals(ImmutableList.of("{\"rows\": 100}", "{\"y\": 2}"), scanner.getOutputs());
+        assertEquals(0, scanner.getPending().length);
+        assertFalse(scanner.isSkipping());
+    }
+
+    @Test
+    public void ignoresLinesStartingWithPartOfMarker() throws IOException {
+        RetzOutputScanner scanner = newScanner(new byte[0], false);
+        write(scanner, "##digdag\n##digdag-outpu {}\n");
+
+        assertEquals(ImmutableList.of(), scanner.getOutputs());
+    }
+
+    @Test
+    public void skipsTooLongMarkerLines() throws IOException {
+        RetzOutputScanner scanner = newScanner(new byte[0], false);
+        byte[] payload = new byte[RetzOutputScanner.MAX_LINE_LENGTH];
+        Arrays.fill(payload, (byte) '1');
+        write(scanner, MARKER + " ");
+        scanner.write(payload, 0, payload.length);
+        write(scanner, "\n" + MARKER + " {\"a\": 1}\n");
+
+        assertEquals(1, scanner.getOverflows());
+        assertEquals(ImmutableList.of("{\"a\": 1}"), scanner.getOutputs());
+    }
+
+    @Test
+    public void resumesPendingMarkerLine() throws IOException {
+        RetzOutputScanner first = newScanner(new byte[0], false);
+        write(first, "log\n" + MARKER + " {\"a\":");
+        assertEquals(ImmutableList.of(), first.getOutputs());
+        assertEquals(MARKER + " {\"a\":", new String(first.getPending(), UTF_8));
+
+        RetzOutputScanner second = newScanner(first.getPending(), first.isSkipping());
+        write(second, " 1}\n");
+        assertEquals(ImmutableList.of("{\"a\": 1}"), second.getOutputs());
+    }
+
+    @Test
+    public void resumesPendingPartOfMarker() throws IOException {
+        RetzOutputScanner first = newScanner(new byte[0], false);
+        write(first, "##dig");
+
+        RetzOutputScanner second = newScanner(first.getPending(), first.isSkipping());
+        write(second, "dag-output {\"b\": 2}\n");
+        assertEquals(ImmutableList.of("{\"b\": 2}"), second.getOutputs());
+    }
+
+    @Test
+    public void resumesSkippingLine() throws IOException {
+        RetzOutputScanner first = newScanner(new byte[0], false);
+        write(first, "plain log ");
+        assertTrue(first.isSkipping());
+        assertEquals(0, first.getPending().length);
+
+        // rest of the plain line, which happens to contain the marker
+        RetzOutputScanner second = newScanner(first.getPending(), first.isSkipping());
+        write(second, MARKER + " {}\n" + MARKER + " {\"c\": 3}\n");
+        assertEquals(ImmutableList.of("{\"c\": 3}"), second.getOutputs());
+    }
+
+    @Test
+    public void finishTakesUnterminatedMarkerLine() throws IOException {
+        RetzOutputScanner scanner = newScanner(new byte[0], false);
+        write(scanner, MARKER + " {\"d\": 4}");
+        assertEquals(ImmutableList.of(), scanner.getOutputs());
+
+        scanner.finish();
+        assertEquals(ImmutableList.of("{\"d\": 4}"), scanner.getOutputs());
+        assertEquals(0, scanner.getPending().length);
+    }
+
+    @Test
+    public void finishIgnoresUnterminatedPartOfMarker() throws IOException {
+        RetzOutputScanner scanner = newScanner("##digdag".getBytes(UTF_8), false);
+        scanner.finish();
+
+        assertEquals(ImmutableList.of(), scanner.getOutputs());
+    }
+
+    private RetzOutputScanner newScanner(byte[] pending, boolean skipping) {
+        return new RetzOutputScanner(out, MARKER, pending, skipping);
+    }
+
+    private static void write(RetzOutputScanner scanner, String text) throws IOException {
+        byte[] bytes = text.getBytes(UTF_8);
+        scanner.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,165 @@
+package io.github.retz.digdag.plugin;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetzQuotaManagerTest {
+
+    private static final long LEASE = 1000L;
+
+    private static final Map<String, Integer> APP_2 = ImmutableMap.of("appname:app", 2);
+
+    private long now = 0L;
+
+    private final RetzQuotaManager quota = new RetzQuotaManager(() -> now);
+
+    @Test
+    public void admitsUpToLimitThenQueues() {
+        assertTrue(quota.acquire(1, APP_2, 1, LEASE).isGranted());
+        assertTrue(quota.acquire(2, APP_2, 1, LEASE).isGranted());
+
+        RetzQuotaManager.Admission third = quota.acquire(3, APP_2, 1, LEASE);
+        assertFalse(third.isGranted());
+        assertEquals(1, third.getPosition());
+        assertEquals(1, third.getQueueLength());
+
+        RetzQuotaManager.Admission fourth = quota.acquire(4, APP_2, 1, LEASE);
+        assertFalse(fourth.isGranted());
+        assertEquals(2, fourth.getPosition());
+        assertEquals(2, fourth.getQueueLength());
+    }
+
+    @Test
+    public void admitsInArrivalOrder() {
+        quota.acquire(1, APP_2, 1, LEASE);
+        quota.acquire(2, APP_2, 1, LEASE);
+        quota.acquire(3, APP_2, 1, LEASE);
+        quota.acquire(4, APP_2, 1, LEASE);
+
+        quota.release(1);
+        // task 4 polls first, but task 3 is ahead of it
+        assertFalse(quota.acquire(4, APP_2, 1, LEASE).isGranted());
+        assertTrue(quota.acquire(3, APP_2, 1, LEASE).isGranted());
+        assertFalse(quota.acquire(4, APP_2, 1, LEASE).isGranted());
+
+        quota.release(2);
+        assertTrue(quota.acquire(4, APP_2, 1, LEASE).isGranted());
+    }
+
+    @Test
+    public void admitsOnlyWithinAllKeys() {
+        Map<String, Integer> appAndTag = ImmutableMap.of("appname:app", 3, "tag:gpu", 1);
+        Map<String, Integer> app = ImmutableMap.of("appname:app", 3);
+
+        assertTrue(quota.acquire(1, appAndTag, 1, LEASE).isGranted());
+
+        RetzQuotaManager.Admission second = quota.acquire(2, appAndTag, 1, LEASE);
+        assertFalse(second.isGranted());
+        assertEquals(1, second.getPosition());
+
+        // task 2 waits only for the tag, and keeps its place in the appname queue
+        assertTrue(quota.acquire(3, app, 1, LEASE).isGranted());
+        assertFalse(quota.acquire(4, app, 1, LEASE).isGranted());
+
+        quota.release(1);
+        assertTrue(quota.acquire(2, appAndTag, 1, LEASE).isGranted());
+    }
+
+    @Test
+    public void takesWholeLimitForPermitsAboveLimit() {
+        assertTrue(quota.acquire(1, APP_2, 1, LEASE).isGranted());
+        assertFalse(quota.acquire(2, APP_2, 5, LEASE).isGranted());
+
+        quota.release(1);
+        assertTrue(quota.acquire(2, APP_2, 5, LEASE).isGranted());
+        assertFalse(quota.acquire(3, APP_2, 1, LEASE).isGranted());
+    }
+
+    @Test
+    public void expiresLeaseOfTaskNotPolling() {
+        Map<String, Integer> app1 = ImmutableMap.of("appname:app", 1);
+        assertTrue(quota.acquire(1, app1, 1, LEASE).isGranted());
+        assertFalse(quota.acquire(2, app1, 1, LEASE).isGranted());
+
+        now = 800L;
+        quota.renew(1, app1, 1, LEASE);
+        assertFalse(quota.acquire(2, app1, 1, LEASE).isGranted());
+
+        // task 1 has stopped polling since 800
+        now = 1900L;
+        assertTrue(quota.acquire(2, app1, 1, LEASE).isGranted());
+    }
+
+    @Test
+    public void expiresWaiterNotPolling() {
+        Map<String, Integer> app1 = ImmutableMap.of("appname:app", 1);
+        quota.acquire(1, app1, 1, LEASE);
+        quota.acquire(2, app1, 1, LEASE);
+
+        now = 500L;
+        assertEquals(2, quota.acquire(3, app1, 1, LEASE).getPosition());
+
+        // task 2 has stopped polling since 0
+        now = 1200L;
+        quota.renew(1, app1, 1, LEASE);
+        assertEquals(1, quota.acquire(3, app1, 1, LEASE).getPosition());
+    }
+
+    @Test
+    public void renewCountsLostTaskEvenAboveLimit() {
+        Map<String, Integer> app1 = ImmutableMap.of("appname:app", 1);
+        assertTrue(quota.acquire(2, app1, 1, LEASE).isGranted());
+
+        // task 1 has been running since before this JVM started
+        quota.renew(1, app1, 1, LEASE);
+        quota.release(2);
+        assertFalse(quota.acquire(3, app1, 1, LEASE).isGranted());
+
+        quota.release(1);
+        assertTrue(quota.acquire(3, app1, 1, LEASE).isGranted());
+    }
+
+    @Test
+    public void acquiresExtraWithinLimit() {
+        assertTrue(quota.acquire(1, APP_2, 1, LEASE).isGranted());
+        assertTrue(quota.acquireExtra(1, APP_2, 1, LEASE));
+        assertFalse(quota.acquireExtra(1, APP_2, 1, LEASE));
+        assertFalse(quota.acquire(2, APP_2, 1, LEASE).isGranted());
+
+        quota.releaseExtra(1, 1);
+        assertTrue(quota.acquire(2, APP_2, 1, LEASE).isGranted());
+    }
+
+    @Test
+    public void neverAcquiresExtraAheadOfWaiters() {
+        Map<String, Integer> app3 = ImmutableMap.of("appname:app", 3);
+        assertTrue(quota.acquire(1, app3, 1, LEASE).isGranted());
+        assertFalse(quota.acquire(2, app3, 3, LEASE).isGranted());
+
+        assertFalse(quota.acquireExtra(1, app3, 1, LEASE));
+    }
+
+    @Test
+    public void neverAcquiresExtraWithoutQuota() {
+        assertFalse(quota.acquireExtra(1, APP_2, 1, LEASE));
+    }
+
+    @Test
+    public void releaseLeavesQueue() {
+        Map<String, Integer> app1 = ImmutableMap.of("appname:app", 1);
+        quota.acquire(1, app1, 1, LEASE);
+        quota.acquire(2, app1, 1, LEASE);
+        assertEquals(2, quota.acquire(3, app1, 1, LEASE).getPosition());
+
+        quota.release(2);
+        RetzQuotaManager.Admission third = quota.acquire(3, app1, 1, LEASE);
+        assertEquals(1, third.getPosition());
+        assertEquals(1, third.getQueueLength());
+    }
+}
@@ -0,0 +1,205 @@
+package io.github.retz.digdag.plugin;
+
+import com.google.common.base.Optional;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RetzRawFileReaderTest {
+
+    private static final byte[] CONTENT = "line 1\nline 2\nline 3\n".getBytes(UTF_8);
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    private HttpServer server;
+    private RetzRawFileReader reader;
+
+    private Handler handler;
+    private Headers lastRequest;
+
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/job", exchange -> {
+            lastRequest = exchange.getRequestHeaders();
+            try {
+                handler.handle(exchange);
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+        // a new port for each test, as unsupported servers are remembered in the JVM
+        URI uri = URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+        reader = new RetzRawFileReader(uri, Optional.absent(), true);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void readsWholeFileWithGzip() throws IOException {
+        handler = exchange -> {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            send(exchange, 200, gzip(CONTENT));
+        };
+
+        assertEquals(Optional.of((long) CONTENT.length), reader.read(1, "stdout", 0, out));
+        assertEquals("gzip", lastRequest.getFirst("Accept-Encoding"));
+        assertNull(lastRequest.getFirst("Range"));
+        assertTrue(Arrays.equals(CONTENT, out.toByteArray()));
+        assertTrue(reader.isSupported());
+    }
+
+    @Test
+    public void readsRangeWithoutGzip() throws IOException {
+        handler = exchange -> {
+            exchange.getResponseHeaders().set("Content-Range", "bytes 7-20/21");
+            send(exchange, 206, Arrays.copyOfRange(CONTENT, 7, CONTENT.length));
+        };
+
+        assertEquals(Optional.of(14L), reader.read(1, "stdout", 7, out));
+        assertEquals("identity", lastRequest.getFirst("Accept-Encoding"));
+        assertEquals("bytes=7-", lastRequest.getFirst("Range"));
+        assertEquals("line 2\nline 3\n", new String(out.toByteArray(), UTF_8));
+        assertTrue(reader.isSupported());
+    }
+
+    @Test
+    public void marksUnsupportedIfRangeIsIgnored() throws IOException {
+        handler = exchange -> send(exchange, 200, CONTENT);
+
+        assertFalse(reader.read(1, "stdout", 7, out).isPresent());
+        assertEquals(0, out.size());
+        assertFalse(reader.isSupported());
+    }
+
+    @Test
+    public void marksUnsupportedIfContentRangeDiffers() throws IOException {
+        handler = exchange -> {
+            exchange.getResponseHeaders().set("Content-Range", "bytes 0-20/21");
+            send(exchange, 206, CONTENT);
+        };
+
+        assertFalse(reader.read(1, "stdout", 7, out).isPresent());
+        assertEquals(0, out.size());
+        assertFalse(reader.isSupported());
+    }
+
+    @Test
+    public void marksUnsupportedIfRangeIsGzipped() throws IOException {
+        handler = exchange -> {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            exchange.getResponseHeaders().set("Content-Range", "bytes 7-40/41");
+            send(exchange, 206, Arrays.copyOfRange(gzip(CONTENT), 7, 20));
+        };
+
+        assertFalse(reader.read(1, "stdout", 7, out).isPresent());
+        assertEquals(0, out.size());
+        assertFalse(reader.isSupported());
+    }
+
+    @Test
+    public void readsNothingIfRangeIsNotSatisfiable() throws IOException {
+        handler = exchange -> send(exchange, 416, new byte[0]);
+
+        assertEquals(Optional.of(0L), reader.read(1, "stdout", CONTENT.length, out));
+        assertTrue(reader.isSupported());
+    }
+
+    @Test
+    public void fallsBackOnlyOnceIfNotFound() throws IOException {
+        handler = exchange -> send(exchange, 404, new byte[0]);
+
+        assertFalse(reader.read(1, "stdout", 0, out).isPresent());
+        assertTrue(reader.isSupported());
+    }
+
+    @Test
+    public void fallsBackOnlyOnceIfUnavailable() throws IOException {
+        handler = exchange -> send(exchange, 503, new byte[0]);
+
+        assertFalse(reader.read(1, "stdout", 7, out).isPresent());
+        assertTrue(reader.isSupported());
+    }
+
+    @Test
+    public void marksUnsupportedIfMethodIsNotAllowed() throws IOException {
+        handler = exchange -> send(exchange, 405, new byte[0]);
+
+        assertFalse(reader.read(1, "stdout", 0, out).isPresent());
+        assertFalse(reader.isSupported());
+    }
+
+    @Test
+    public void keepsBytesDecodedFromTruncatedGzip() throws IOException {
+        byte[] large = new byte[200000];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) ('a' + i * 7919 % 26);
+        }
+        byte[] gzipped = gzip(large);
+        handler = exchange -> {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            send(exchange, 200, Arrays.copyOf(gzipped, gzipped.length / 2));
+        };
+
+        Optional<Long> read = reader.read(1, "stdout", 0, out);
+        assertTrue(read.isPresent());
+        assertTrue(read.get() < large.length);
+        assertEquals((long) out.size(), (long) read.get());
+        assertTrue(Arrays.equals(Arrays.copyOf(large, out.size()), out.toByteArray()));
+        assertTrue(reader.isSupported());
+    }
+
+    @Test
+    public void marksUnsupportedIfGzipIsBroken() throws IOException {
+        handler = exchange -> {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            send(exchange, 200, CONTENT);
+        };
+
+        assertFalse(reader.read(1, "stdout", 0, out).isPresent());
+        assertEquals(0, out.size());
+        assertFalse(reader.isSupported());
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(buffer)) {
+            gzip.write(bytes);
+        }
+        return buffer.toByteArray();
+    }
+}
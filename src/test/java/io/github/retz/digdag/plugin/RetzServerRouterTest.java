@@ -0,0 +1,102 @@
+package io.github.retz.digdag.plugin;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import io.digdag.client.config.ConfigException;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RetzServerRouterTest {
+
+    private static final URI A = URI.create("http://retz-a:9090");
+    private static final URI B = URI.create("http://retz-b:9090");
+    private static final URI C = URI.create("http://retz-c:9090");
+
+    private static final List<URI> SERVERS = ImmutableList.of(A, B, C);
+
+    @Test
+    public void parsesPolicy() {
+        assertEquals(RetzServerRouter.Policy.LEAST_QUEUED, RetzServerRouter.Policy.of("least-queued"));
+        assertEquals(RetzServerRouter.Policy.WEIGHTED, RetzServerRouter.Policy.of("weighted"));
+        assertEquals(RetzServerRouter.Policy.STICKY, RetzServerRouter.Policy.of("Sticky"));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void rejectsUnknownPolicy() {
+        RetzServerRouter.Policy.of("round-robin");
+    }
+
+    @Test
+    public void routesLeastQueuedFirstAndUnreachableLast() {
+        RetzServerRouter router = new RetzServerRouter(SERVERS, RetzServerRouter.Policy.LEAST_QUEUED, ImmutableList.of());
+        Map<URI, Optional<Integer>> queueLengths = ImmutableMap.of(
+                A, Optional.absent(),
+                B, Optional.of(5),
+                C, Optional.of(2));
+
+        assertEquals(ImmutableList.of(C, B, A), router.route("app", queueLengths::get));
+    }
+
+    @Test
+    public void keepsConfiguredOrderForSameQueueLength() {
+        RetzServerRouter router = new RetzServerRouter(SERVERS, RetzServerRouter.Policy.LEAST_QUEUED, ImmutableList.of());
+
+        assertEquals(SERVERS, router.route("app", uri -> Optional.of(0)));
+    }
+
+    @Test
+    public void routesSameAppNameToSameServer() {
+        RetzServerRouter router = new RetzServerRouter(SERVERS, RetzServerRouter.Policy.STICKY, ImmutableList.of());
+        Function<URI, Optional<Integer>> unused = uri -> {
+            throw new AssertionError("queue length must not be probed");
+        };
+
+        List<URI> route = router.route("app", unused);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(route, router.route("app", unused));
+        }
+        assertRotation(route);
+    }
+
+    @Test
+    public void neverRoutesFirstToZeroWeight() {
+        RetzServerRouter router = new RetzServerRouter(SERVERS, RetzServerRouter.Policy.WEIGHTED, ImmutableList.of(0, 1, 3));
+
+        Set<URI> firsts = new HashSet<>();
+        for (int i = 0; i < 200; i++) {
+            List<URI> route = router.route("app", uri -> Optional.absent());
+            assertRotation(route);
+            firsts.add(route.get(0));
+        }
+        assertEquals(ImmutableSet.of(B, C), firsts);
+    }
+
+    @Test(expected = ConfigException.class)
+    public void rejectsWeightsOfDifferentSize() {
+        new RetzServerRouter(SERVERS, RetzServerRouter.Policy.WEIGHTED, ImmutableList.of(1, 2));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void rejectsInvalidUri() {
+        RetzServerRouter.toUri("http://retz a:9090");
+    }
+
+    private static void assertRotation(List<URI> route) {
+        int first = SERVERS.indexOf(route.get(0));
+        assertTrue(first >= 0);
+        for (int i = 0; i < SERVERS.size(); i++) {
+            assertEquals(SERVERS.get((first + i) % SERVERS.size()), route.get(i));
+        }
+    }
+}